@@ -0,0 +1,90 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.oacurl.util.JsonSelectStream;
+
+/**
+ * {@link JsonSelectStream}, behind "--select", on a feed-shaped body, in
+ * 16K writes as {@link com.google.oacurl.Fetch} makes them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonSelectBenchmark {
+  private static final int WRITE_SIZE = 16 * 1024;
+
+  @Param({ "items[].id", "items[]" })
+  public String path;
+
+  private byte[] data;
+
+  @Setup
+  public void setUp() throws IOException {
+    StringBuilder json = new StringBuilder("{\"kind\":\"feed\",\"items\":[");
+    for (int i = 0; i < 2000; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":\"tag:example.com,2010:").append(i)
+          .append("\",\"title\":\"Item \\\"").append(i).append("\\\"\",\"count\":")
+          .append(i * 7).append(",\"public\":true,\"tags\":[\"a\",\"b\"],")
+          .append("\"content\":\"Lorem ipsum dolor sit amet, consectetur adipiscing elit.\"}");
+    }
+    json.append("]}");
+    data = json.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public void select(final Blackhole blackhole) throws IOException {
+    OutputStream sink = new OutputStream() {
+      @Override
+      public void write(int b) {
+        blackhole.consume(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        blackhole.consume(b);
+      }
+    };
+
+    JsonSelectStream select = new JsonSelectStream(sink, path);
+    for (int off = 0; off < data.length; off += WRITE_SIZE) {
+      select.write(data, off, Math.min(WRITE_SIZE, data.length - off));
+    }
+    select.finish();
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.oauth.OAuth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.oacurl.util.MultipartRelatedInputStream;
+
+/**
+ * Reads a 4 MB multipart/related body, split into some number of parts,
+ * the way HttpClient would send it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultipartBenchmark {
+  private static final int TOTAL_SIZE = 4 * 1024 * 1024;
+
+  @Param({ "1", "100" })
+  public int parts;
+
+  private List<File> files;
+  private List<Map.Entry<String, String>> related;
+  private final byte[] buf = new byte[2048];
+
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(0);
+    byte[] data = new byte[TOTAL_SIZE / parts];
+    random.nextBytes(data);
+
+    files = new ArrayList<File>();
+    related = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < parts; i++) {
+      File file = File.createTempFile("oacurl-bench", ".bin");
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(data);
+      out.close();
+
+      files.add(file);
+      related.add(new OAuth.Parameter(file.getPath(), "application/octet-stream"));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Reads in HttpClient's InputStreamEntity buffer size.
+   */
+  @Benchmark
+  public long read() throws IOException {
+    MultipartRelatedInputStream in = new MultipartRelatedInputStream(related);
+    long total = 0;
+    int count;
+    while ((count = in.read(buf)) > -1) {
+      total += count;
+    }
+    in.close();
+    return total;
+  }
+}
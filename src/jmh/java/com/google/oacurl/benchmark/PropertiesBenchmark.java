@@ -0,0 +1,70 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * Loading a login properties file, as every fetch does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertiesBenchmark {
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = File.createTempFile("oacurl-bench", ".properties");
+
+    Properties properties = new Properties();
+    properties.setProperty("consumerKey", "anonymous");
+    properties.setProperty("consumerSecret", "anonymous");
+    properties.setProperty("accessToken", "1/AbCdEfGhIjKlMnOpQrStUvWxYz0123456789");
+    properties.setProperty("accessTokenSecret", "aBcDeFgHiJkLmNoPqRsTuVwX");
+    properties.setProperty("version", "V1");
+    new PropertiesProvider(file.getPath()).overwrite(properties);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public Properties get() throws IOException {
+    return new PropertiesProvider(file.getPath()).get();
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.oacurl.engine.OAuthEngine;
+import com.google.oacurl.engine.V1OAuthEngine;
+import com.google.oacurl.engine.V2OAuthEngine;
+
+/**
+ * Cost of authorizing one request with each kind of {@link OAuthEngine},
+ * plus the OAuth library's own V1 signing for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SigningBenchmark {
+  private static final String URL =
+      "https://www.googleapis.com/buzz/v1/activities/@me/@consumption?alt=json&max-results=20";
+
+  private OAuthAccessor accessor;
+  private OAuthEngine v1Engine;
+  private OAuthEngine v2Engine;
+
+  @Setup
+  public void setUp() {
+    OAuthConsumer consumer = new OAuthConsumer(null, "anonymous", "anonymous", null);
+    accessor = new OAuthAccessor(consumer);
+    accessor.accessToken = "1/AbCdEfGhIjKlMnOpQrStUvWxYz0123456789";
+    accessor.tokenSecret = "aBcDeFgHiJkLmNoPqRsTuVwX";
+
+    v1Engine = new V1OAuthEngine();
+    v2Engine = new V2OAuthEngine();
+  }
+
+  @Benchmark
+  public OAuthMessage v1AuthMessage() throws Exception {
+    OAuthMessage message = new OAuthMessage("GET", URL, null);
+    v1Engine.authMessage(accessor, message);
+    return message;
+  }
+
+  @Benchmark
+  public OAuthMessage v1Library() throws Exception {
+    OAuthMessage message = new OAuthMessage("GET", URL, null);
+    message.addRequiredParameters(accessor);
+    return message;
+  }
+
+  @Benchmark
+  public OAuthMessage v2AuthMessage() throws Exception {
+    OAuthMessage message = new OAuthMessage("GET", URL, null);
+    v2Engine.authMessage(accessor, message);
+    return message;
+  }
+}
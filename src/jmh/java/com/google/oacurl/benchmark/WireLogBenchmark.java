@@ -0,0 +1,87 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.conn.Wire;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.oacurl.util.WireLog;
+
+/**
+ * What "oacurl -v" costs the thread making a request: handing the wire log a
+ * header line, a chunk size, or a response's first line and body. The
+ * writing happens on the wire log's own thread, here into a sink that throws
+ * it away.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireLogBenchmark {
+  private final byte[] body = new byte[8192];
+
+  private Wire wire;
+
+  @Setup
+  public void setUp() throws IOException {
+    WireLog.start(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    }, null, WireLog.DEFAULT_BODY_LIMIT);
+    wire = WireLog.newWire(false);
+    new Random(0).nextBytes(body);
+  }
+
+  @Benchmark
+  public void header() throws IOException {
+    wire.input("Content-Type: application/atom+xml; charset=UTF-8[EOL]");
+  }
+
+  @Benchmark
+  public void chunkSize() throws IOException {
+    wire.input("1f40[EOL]");
+  }
+
+  /**
+   * A status line and its body, so that the body is copied up to the display
+   * limit each time rather than cut off as the rest of one long body.
+   */
+  @Benchmark
+  public void message() throws IOException {
+    wire.input("HTTP/1.1 200 OK[EOL]");
+    wire.input(body, 0, body.length);
+  }
+}
@@ -0,0 +1,323 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.oauth.OAuth.Parameter;
+import net.oauth.http.HttpResponseMessage;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.oacurl.options.FetchOptions.Method;
+
+/**
+ * Runs {@link Fetch} requests in the background, handing back a
+ * {@link Call} to wait on, cancel or be called back from.
+ * <p>
+ * Each request is signed and sent on a thread of its own, so requests that
+ * take a long time to answer (long polls, say) don't hold each other up. The
+ * threads have small stacks and go away when idle, so a process can have many
+ * thousands of requests in flight. The connection pool needs as many
+ * connections, or requests past its per-host limit wait for one. The pool is
+ * made once per process, when the first {@link Fetch} is loaded, so it's up
+ * to the caller to size it first, with
+ * {@link com.google.oacurl.options.ConnectionPoolOptions#ensureCapacity}.
+ * <p>
+ * Cancelling a call, or letting its deadline pass, closes its connection, so
+ * that a thread blocked waiting on the server is freed at once. This needs the
+ * default HttpClient 4 transport; with another one the call is marked
+ * cancelled but its thread runs on until the server answers.
+ */
+public class AsyncFetch {
+  /**
+   * Stack size for request threads. Signing and HttpClient need far less than
+   * the usual default, and the smaller stack lets many more threads run.
+   */
+  private static final long STACK_SIZE = 256 * 1024;
+
+  private static final long IDLE_THREAD_SECONDS = 60;
+
+  private static Logger logger = Logger.getLogger(AsyncFetch.class.getName());
+
+  /** The call whose request the current thread is making, if any. */
+  private static final ThreadLocal<Call> currentCall = new ThreadLocal<Call>();
+
+  private static ScheduledExecutorService deadlines;
+
+  private final Fetch fetch;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Listens for a call to finish. Called on the thread that made the request,
+   * or on the caller's thread if the call was cancelled.
+   */
+  public interface Callback {
+    void onResponse(HttpResponseMessage response);
+
+    /**
+     * @param e Why the call failed: an {@link IOException}, an
+     *     {@link net.oauth.OAuthException}, or a {@link CancellationException}
+     *     if it was cancelled or timed out.
+     */
+    void onFailure(Throwable e);
+  }
+
+  /**
+   * @param maxInFlight The most requests to run at once. Requests past that
+   *     wait their turn. The {@link Fetch}'s pool should already have room
+   *     for this many connections to a host.
+   */
+  public AsyncFetch(Fetch fetch, int maxInFlight) {
+    this.fetch = fetch;
+    this.executor = new ThreadPoolExecutor(maxInFlight, maxInFlight,
+        IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new RequestThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Starts a request, as with {@link Fetch#execute}.
+   *
+   * @param timeoutMillis How long to wait for the response before giving up
+   *     on it, or 0 to wait as long as it takes. Reading the body afterwards
+   *     isn't covered.
+   * @param callback Called when the call finishes, or null for none.
+   */
+  public Call submit(Method method, String url, InputStream bodyStream, String contentType,
+      List<Parameter> headers, long timeoutMillis, Callback callback) {
+    return submit(RetryPolicy.NONE, method, url, bodyStream, contentType, headers,
+        timeoutMillis, callback);
+  }
+
+  /**
+   * Like {@link #submit(Method, String, InputStream, String, List, long,
+   * Callback)}, but retries as the policy allows. The timeout covers every
+   * attempt, and the waits in between.
+   */
+  public Call submit(RetryPolicy retryPolicy, Method method, String url, InputStream bodyStream,
+      String contentType, List<Parameter> headers, long timeoutMillis, Callback callback) {
+    Call call = new Call(retryPolicy, method, url, bodyStream, contentType, headers, callback);
+    if (timeoutMillis > 0) {
+      call.setDeadline(timeoutMillis);
+    }
+    executor.execute(call);
+    return call;
+  }
+
+  /**
+   * Stops taking new calls. Calls already submitted still run.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Cancels every call that hasn't finished, and stops taking new ones.
+   */
+  public void shutdownNow() {
+    for (Runnable queued : executor.shutdownNow()) {
+      ((Call) queued).cancel(true);
+    }
+  }
+
+  /**
+   * Remembers the connection a request is going out on, so that cancelling
+   * its call can close it. Added to the HttpClient 4 pool by {@link Fetch}.
+   */
+  static class ConnectionInterceptor implements HttpRequestInterceptor {
+    public void process(HttpRequest request, HttpContext context) throws IOException {
+      Call call = currentCall.get();
+      if (call != null) {
+        call.setConnection(
+            (ManagedClientConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION));
+      }
+    }
+  }
+
+  /**
+   * A request that's been submitted, and in time its response.
+   */
+  public class Call extends FutureTask<HttpResponseMessage> {
+    private final Callback callback;
+
+    // Guarded by this.
+    private ManagedClientConnection connection;
+    private ScheduledFuture<?> deadline;
+    private boolean timedOut;
+
+    private Call(final RetryPolicy retryPolicy, final Method method, final String url,
+        final InputStream bodyStream, final String contentType, final List<Parameter> headers,
+        Callback callback) {
+      super(new Callable<HttpResponseMessage>() {
+        public HttpResponseMessage call() throws Exception {
+          return fetch.execute(retryPolicy, method, url, bodyStream, contentType, headers);
+        }
+      });
+      this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+      currentCall.set(this);
+      try {
+        super.run();
+      } finally {
+        currentCall.remove();
+      }
+    }
+
+    /**
+     * Whether the call was cancelled because its deadline passed.
+     */
+    public synchronized boolean isTimedOut() {
+      return timedOut;
+    }
+
+    @Override
+    protected void done() {
+      synchronized (this) {
+        if (deadline != null) {
+          deadline.cancel(false);
+        }
+      }
+
+      // Once the response is back its body belongs to the caller, and the
+      // connection is only ours to close while we're still waiting on it.
+      if (isCancelled()) {
+        abort();
+      } else {
+        synchronized (this) {
+          connection = null;
+        }
+      }
+
+      if (callback == null) {
+        return;
+      }
+
+      try {
+        if (isCancelled()) {
+          callback.onFailure(new CancellationException(
+              isTimedOut() ? "Timed out" : "Cancelled"));
+          return;
+        }
+
+        HttpResponseMessage response;
+        try {
+          response = get();
+        } catch (ExecutionException e) {
+          callback.onFailure(e.getCause());
+          return;
+        } catch (InterruptedException e) {
+          // Can't happen: we're done.
+          Thread.currentThread().interrupt();
+          return;
+        }
+        callback.onResponse(response);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Callback failed for a call", e);
+      }
+    }
+
+    private synchronized void setDeadline(long timeoutMillis) {
+      deadline = getDeadlines().schedule(new Runnable() {
+        public void run() {
+          synchronized (Call.this) {
+            if (isDone()) {
+              return;
+            }
+            timedOut = true;
+          }
+          cancel(true);
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void setConnection(ManagedClientConnection connection) throws IOException {
+      synchronized (this) {
+        if (!isCancelled()) {
+          this.connection = connection;
+          return;
+        }
+      }
+      throw new IOException("Cancelled");
+    }
+
+    /**
+     * Closes the connection the request is on, if it's on one yet. Whatever
+     * the request thread is blocked on then fails.
+     */
+    private void abort() {
+      ManagedClientConnection toAbort;
+      synchronized (this) {
+        toAbort = connection;
+        connection = null;
+      }
+      if (toAbort == null) {
+        return;
+      }
+
+      try {
+        toAbort.abortConnection();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Error closing a cancelled call's connection", e);
+      }
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getDeadlines() {
+    if (deadlines == null) {
+      deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "AsyncFetch deadlines");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return deadlines;
+  }
+
+  private static class RequestThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(null, r, "AsyncFetch-" + count.incrementAndGet(), STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,386 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.oauth.OAuth;
+import net.oauth.OAuth.Parameter;
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpResponseMessage;
+
+import com.google.oacurl.options.FetchOptions;
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.FileBodyInputStream;
+import com.google.oacurl.util.StreamCopier;
+
+/**
+ * Runs a list of requests through one {@link Fetch}, several at a time, so
+ * that the login properties are read and the connection pool is warmed just
+ * once.
+ * <p>
+ * Each line of the batch file is one request: the HTTP method, the URL, an
+ * optional file to send as the body ("-" or empty for none) and any number of
+ * "Name: value" headers, all separated by tabs. A line with just a URL is a
+ * GET. Blank lines and lines starting with "#" are skipped.
+ * <p>
+ * Each response body is written to stdout, preceded by a status line on
+ * stderr, either in request order or in the order that requests finish.
+ * Bodies waiting their turn are held in memory up to
+ * {@link #MAX_BUFFERED_BODY} bytes each, and in temporary files past that.
+ */
+public class BatchFetch {
+  /** Most bytes of each waiting response body to hold in memory. */
+  static final int MAX_BUFFERED_BODY = 256 * 1024;
+
+  private final Fetch fetch;
+  private final FetchOptions options;
+
+  public BatchFetch(Fetch fetch, FetchOptions options) {
+    this.fetch = fetch;
+    this.options = options;
+  }
+
+  /**
+   * Runs every request in the batch file.
+   *
+   * @return true if every request was well-formed and got a non-error
+   *     response.
+   */
+  public boolean run() throws IOException, InterruptedException {
+    String batchFile = options.getBatchFile();
+    BufferedReader reader = "-".equals(batchFile)
+        ? new BufferedReader(new InputStreamReader(System.in))
+        : new BufferedReader(new FileReader(batchFile));
+
+    int concurrency = options.getConcurrency();
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+
+    // Results are held until written, so we only read ahead a little way past
+    // what's actually running.
+    int window = concurrency * 2;
+    LinkedList<Future<Result>> pending = new LinkedList<Future<Result>>();
+    boolean success = true;
+
+    try {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+
+        RequestTask task;
+        try {
+          task = parseLine(lineNumber, line);
+        } catch (IllegalArgumentException e) {
+          System.err.println(lineNumber + " " + e.getMessage());
+          success = false;
+          continue;
+        }
+
+        pending.add(options.isUnordered()
+            ? completionService.submit(task)
+            : executor.submit(task));
+
+        if (pending.size() >= window) {
+          success &= writeResult(nextResult(pending, completionService));
+        }
+      }
+
+      while (!pending.isEmpty()) {
+        success &= writeResult(nextResult(pending, completionService));
+      }
+    } finally {
+      executor.shutdownNow();
+      reader.close();
+    }
+
+    return success;
+  }
+
+  private Result nextResult(LinkedList<Future<Result>> pending,
+      CompletionService<Result> completionService) throws InterruptedException {
+    Future<Result> future;
+    if (options.isUnordered()) {
+      future = completionService.take();
+      pending.remove(future);
+    } else {
+      future = pending.removeFirst();
+    }
+
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      // RequestTask catches everything it expects, so this is a bug.
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private boolean writeResult(Result result) throws IOException {
+    StringBuilder status = new StringBuilder();
+    status.append(result.task.lineNumber).append(' ');
+    status.append(result.task.method).append(' ');
+    status.append(result.task.url).append(" -> ");
+    if (result.error != null) {
+      status.append("ERROR");
+      if (result.statusCode != -1) {
+        status.append(' ').append(result.statusCode);
+      }
+      status.append(": ").append(result.error);
+    } else {
+      status.append(result.statusCode);
+    }
+    status.append(" (").append(result.elapsedMillis).append(" ms)");
+
+    System.out.flush();
+    System.err.println(status);
+    System.err.flush();
+
+    if (result.body != null) {
+      try {
+        result.body.writeTo(System.out);
+        System.out.flush();
+      } finally {
+        result.body.discard();
+      }
+    }
+
+    return result.error == null && result.statusCode < 400;
+  }
+
+  private RequestTask parseLine(int lineNumber, String line) {
+    String[] fields = line.split("\t");
+
+    Method method;
+    int urlField;
+    try {
+      method = Method.valueOf(fields[0].trim());
+      urlField = 1;
+    } catch (IllegalArgumentException e) {
+      method = Method.GET;
+      urlField = 0;
+    }
+
+    if (fields.length <= urlField || fields[urlField].trim().length() == 0) {
+      throw new IllegalArgumentException("Missing URL: " + line);
+    }
+    String url = fields[urlField].trim();
+
+    String bodyFile = null;
+    if (fields.length > urlField + 1) {
+      bodyFile = fields[urlField + 1].trim();
+      if (bodyFile.length() == 0 || bodyFile.equals("-")) {
+        bodyFile = null;
+      }
+    }
+
+    String contentType = options.getContentType();
+    List<Parameter> headers = new ArrayList<Parameter>(options.getHeaders());
+    for (int i = urlField + 2; i < fields.length; i++) {
+      String[] headerBits = fields[i].split(":", 2);
+      if (headerBits.length != 2) {
+        throw new IllegalArgumentException("Bad header: " + fields[i]);
+      }
+
+      String name = headerBits[0].trim();
+      String value = headerBits[1].trim();
+      if (name.equalsIgnoreCase("Content-Type")) {
+        contentType = value;
+      } else {
+        headers.add(new OAuth.Parameter(name, value));
+      }
+    }
+
+    return new RequestTask(lineNumber, method, url, bodyFile, contentType, headers);
+  }
+
+  private class RequestTask implements Callable<Result> {
+    private final int lineNumber;
+    private final Method method;
+    private final String url;
+    private final String bodyFile;
+    private final String contentType;
+    private final List<Parameter> headers;
+
+    public RequestTask(int lineNumber, Method method, String url, String bodyFile,
+        String contentType, List<Parameter> headers) {
+      this.lineNumber = lineNumber;
+      this.method = method;
+      this.url = url;
+      this.bodyFile = bodyFile;
+      this.contentType = contentType;
+      this.headers = headers;
+    }
+
+    public Result call() {
+      Result result = new Result(this);
+      long startTime = System.currentTimeMillis();
+
+      InputStream requestBodyStream = null;
+      try {
+        if (bodyFile != null) {
+          requestBodyStream = new FileBodyInputStream(bodyFile);
+          if (options.isCompressBody()) {
+            requestBodyStream = Fetch.compressBody(requestBodyStream, headers);
+          }
+        }
+
+        HttpResponseMessage response = fetch.execute(options.getRetryPolicy(), method, url,
+            requestBodyStream, contentType, headers);
+        result.statusCode = response.getStatusCode();
+        InputStream responseBodyStream = response.getBody();
+        if (responseBodyStream != null) {
+          result.body = new BodyBuffer();
+          try {
+            StreamCopier.copy(responseBodyStream, result.body);
+          } finally {
+            responseBodyStream.close();
+            result.body.close();
+          }
+        }
+      } catch (OAuthProblemException e) {
+        result.statusCode = e.getHttpStatusCode();
+        result.error = e.getProblem();
+      } catch (Exception e) {
+        result.error = e.toString();
+      } finally {
+        if (requestBodyStream != null) {
+          try {
+            requestBodyStream.close();
+          } catch (IOException e) {
+            // Nothing useful to do here.
+          }
+        }
+      }
+
+      // Part of a body is no use to anyone.
+      if (result.error != null && result.body != null) {
+        result.body.discard();
+        result.body = null;
+      }
+
+      result.elapsedMillis = System.currentTimeMillis() - startTime;
+      return result;
+    }
+  }
+
+  private static class Result {
+    private final RequestTask task;
+    private int statusCode = -1;
+    private BodyBuffer body;
+    private String error;
+    private long elapsedMillis;
+
+    public Result(RequestTask task) {
+      this.task = task;
+    }
+  }
+
+  /**
+   * Holds a response body until it's written: in memory up to
+   * {@link #MAX_BUFFERED_BODY} bytes, then in a temporary file, so that the
+   * bodies waiting their turn don't all have to fit in the heap.
+   */
+  static class BodyBuffer extends OutputStream {
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (file == null && memory.size() + len > MAX_BUFFERED_BODY) {
+        file = File.createTempFile("oacurl-batch", ".body");
+        // In case we're stopped before the body is written and discarded.
+        file.deleteOnExit();
+        fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileOut);
+        memory = null;
+      }
+
+      if (file != null) {
+        fileOut.write(b, off, len);
+      } else {
+        memory.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+
+    /**
+     * Writes out everything written to this buffer, which must be closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+      if (file == null) {
+        memory.writeTo(out);
+        return;
+      }
+
+      InputStream in = new FileInputStream(file);
+      try {
+        StreamCopier.copy(in, out);
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Frees the body, deleting its temporary file if it has one.
+     */
+    public void discard() {
+      memory = null;
+      if (file != null) {
+        try {
+          fileOut.close();
+        } catch (IOException e) {
+          // We're throwing it away anyway.
+        }
+        file.delete();
+      }
+    }
+  }
+}
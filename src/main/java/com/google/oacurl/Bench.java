@@ -0,0 +1,303 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.oauth.OAuth.Parameter;
+import net.oauth.OAuthProblemException;
+import net.oauth.http.HttpResponseMessage;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+import com.google.oacurl.options.BenchOptions;
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.FileBodyInputStream;
+import com.google.oacurl.util.LatencyHistogram;
+import com.google.oacurl.util.LoggingConfig;
+import com.google.oacurl.util.MultipartRelatedInputStream;
+
+/**
+ * Main class for load testing an OAuth-protected URL. Requests are signed
+ * and sent just as {@link Fetch} does, from a number of threads either as
+ * fast as they can go or at a fixed overall rate.
+ * <p>
+ * In fixed-rate mode each request's latency is measured from when it was
+ * scheduled to start, not from when a thread got around to it, so that a
+ * stalled server shows up in the percentiles rather than just lowering the
+ * request count.
+ */
+public class Bench {
+  private static final String[] PERCENTILES = { "50", "90", "99", "99.9" };
+
+  private final Fetch fetch;
+  private final BenchOptions options;
+  private final String url;
+  private final byte[] stdinBody;
+
+  private final AtomicLong nextSlot = new AtomicLong();
+  private long startNanos;
+  private long measureStartNanos;
+  private long endNanos;
+  private long intervalNanos;
+
+  public Bench(Fetch fetch, BenchOptions options, String url, byte[] stdinBody) {
+    this.fetch = fetch;
+    this.options = options;
+    this.url = url;
+    this.stdinBody = stdinBody;
+  }
+
+  public static void main(String[] args) throws Exception {
+    BenchOptions options = new BenchOptions();
+    CommandLine line;
+    try {
+      line = options.parse(args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+      return;
+    }
+    args = line.getArgs();
+
+    if (options.isHelp() || args.length != 1) {
+      new HelpFormatter().printHelp("url", options.getOptions());
+      System.exit(options.isHelp() ? 0 : -1);
+    }
+
+    if (options.isInsecure()) {
+      SSLSocketFactory.getSocketFactory().setHostnameVerifier(new AllowAllHostnameVerifier());
+    }
+
+    LoggingConfig.init(options.isVerbose());
+
+    Fetch fetch = null;
+    try {
+      fetch = Fetch.load(options, options.getPoolOptions());
+    } catch (FileNotFoundException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Make sure you've run oacurl-login first!");
+      System.exit(-1);
+    }
+
+    // Every request sends the same body, so a body from stdin is read once.
+    byte[] stdinBody = null;
+    Method method = options.getMethod();
+    if ((method == Method.POST || method == Method.PUT)
+        && options.getRelated() == null && options.getFile() == null) {
+      ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int count;
+      while ((count = System.in.read(buf)) > -1) {
+        stdin.write(buf, 0, count);
+      }
+      stdinBody = stdin.toByteArray();
+    }
+
+    new Bench(fetch, options, args[0], stdinBody).run(System.out);
+  }
+
+  /**
+   * Runs the warmup and measurement periods and prints a report.
+   */
+  public void run(PrintStream out) throws InterruptedException {
+    int concurrency = options.getConcurrency();
+    intervalNanos = options.getRate() > 0 ? (long) (1e9 / options.getRate()) : 0;
+
+    startNanos = System.nanoTime();
+    measureStartNanos = startNanos + options.getWarmupMillis() * 1000000;
+    endNanos = measureStartNanos + options.getDurationMillis() * 1000000;
+
+    Worker[] workers = new Worker[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      workers[i] = new Worker();
+      workers[i].setName("bench-" + i);
+      workers[i].start();
+    }
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    int[] statusCounts = new int[600];
+    Map<String, int[]> exceptionCounts = new TreeMap<String, int[]>();
+    long bytes = 0;
+
+    for (Worker worker : workers) {
+      worker.join();
+      histogram.add(worker.histogram);
+      for (int i = 0; i < statusCounts.length; i++) {
+        statusCounts[i] += worker.statusCounts[i];
+      }
+      for (Map.Entry<String, int[]> entry : worker.exceptionCounts.entrySet()) {
+        int[] count = exceptionCounts.get(entry.getKey());
+        if (count == null) {
+          exceptionCounts.put(entry.getKey(), entry.getValue());
+        } else {
+          count[0] += entry.getValue()[0];
+        }
+      }
+      bytes += worker.bytes;
+    }
+
+    double seconds = (System.nanoTime() - measureStartNanos) / 1e9;
+    long requests = histogram.getTotalCount();
+
+    out.printf("Requests:   %d in %.1f s, %.1f req/s, %.1f KB/s%n",
+        requests, seconds, requests / seconds, bytes / 1024.0 / seconds);
+
+    long errors = 0;
+    StringBuilder errorLines = new StringBuilder();
+    for (int status = 0; status < statusCounts.length; status++) {
+      if (status >= 400 && statusCounts[status] > 0) {
+        errors += statusCounts[status];
+        errorLines.append(String.format("  HTTP %d: %d%n", status, statusCounts[status]));
+      }
+    }
+    for (Map.Entry<String, int[]> entry : exceptionCounts.entrySet()) {
+      errors += entry.getValue()[0];
+      errorLines.append(String.format("  %s: %d%n", entry.getKey(), entry.getValue()[0]));
+    }
+    out.printf("Errors:     %d%n", errors);
+    out.print(errorLines);
+
+    out.printf("Latency:    min %.3f ms, mean %.3f ms, max %.3f ms%n",
+        histogram.getMin() / 1000.0, histogram.getMean() / 1000.0, histogram.getMax() / 1000.0);
+    for (String percentile : PERCENTILES) {
+      out.printf("  p%-5s %10.3f ms%n", percentile,
+          histogram.getValueAtPercentile(Double.parseDouble(percentile)) / 1000.0);
+    }
+  }
+
+  private InputStream newBodyStream() throws IOException {
+    Method method = options.getMethod();
+    if (method != Method.POST && method != Method.PUT) {
+      return null;
+    } else if (options.getRelated() != null) {
+      return new MultipartRelatedInputStream(options.getRelated());
+    } else if (options.getFile() != null) {
+      return new FileBodyInputStream(options.getFile());
+    } else {
+      return new ByteArrayInputStream(stdinBody);
+    }
+  }
+
+  /**
+   * One thread's worth of requests, with its own counters so that recording
+   * a result needs neither locks nor allocation.
+   */
+  private class Worker extends Thread {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final int[] statusCounts = new int[600];
+    private final Map<String, int[]> exceptionCounts = new HashMap<String, int[]>();
+    private final byte[] buf = new byte[8192];
+    private long bytes;
+
+    @Override
+    public void run() {
+      while (true) {
+        long scheduledNanos;
+        if (intervalNanos > 0) {
+          scheduledNanos = startNanos + nextSlot.getAndIncrement() * intervalNanos;
+          if (scheduledNanos >= endNanos) {
+            return;
+          }
+
+          long waitNanos = scheduledNanos - System.nanoTime();
+          if (waitNanos > 0) {
+            try {
+              Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        } else {
+          scheduledNanos = System.nanoTime();
+          if (scheduledNanos >= endNanos) {
+            return;
+          }
+        }
+
+        int status = -1;
+        String exception = null;
+        long received = 0;
+
+        InputStream requestBodyStream = null;
+        try {
+          requestBodyStream = newBodyStream();
+          List<Parameter> headers = options.getHeaders();
+          if (requestBodyStream != null && options.isCompressBody()) {
+            headers = new ArrayList<Parameter>(headers);
+            requestBodyStream = Fetch.compressBody(requestBodyStream, headers);
+          }
+
+          HttpResponseMessage response = fetch.execute(options.getMethod(), url,
+              requestBodyStream, options.getContentType(), headers);
+          status = response.getStatusCode();
+
+          InputStream responseBodyStream = response.getBody();
+          if (responseBodyStream != null) {
+            int count;
+            while ((count = responseBodyStream.read(buf)) > -1) {
+              received += count;
+            }
+            responseBodyStream.close();
+          }
+        } catch (OAuthProblemException e) {
+          status = e.getHttpStatusCode();
+        } catch (Exception e) {
+          exception = e.getClass().getName();
+        } finally {
+          if (requestBodyStream != null) {
+            try {
+              requestBodyStream.close();
+            } catch (IOException e) {
+              // Nothing useful to do here.
+            }
+          }
+        }
+
+        if (scheduledNanos < measureStartNanos) {
+          continue;
+        }
+
+        histogram.record((System.nanoTime() - scheduledNanos) / 1000);
+        bytes += received;
+        if (exception != null) {
+          int[] count = exceptionCounts.get(exception);
+          if (count == null) {
+            count = new int[1];
+            exceptionCounts.put(exception, count);
+          }
+          count[0]++;
+        } else if (status >= 0 && status < statusCounts.length) {
+          statusCounts[status]++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,447 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+import com.google.oacurl.dao.LoginDao;
+import com.google.oacurl.options.CommonOptions;
+import com.google.oacurl.options.DaemonOptions;
+import com.google.oacurl.options.FetchOptions;
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.LoggingConfig;
+
+/**
+ * Main class for a long-running process that serves {@link Fetch} requests
+ * from the "oacurl" script, so that each fetch doesn't pay for JVM startup,
+ * re-reading the login properties and a cold connection pool.
+ * <p>
+ * The daemon listens on a loopback port and writes the port and a random key
+ * to ~/.oacurl-daemon, readable only by the user. A client connects, sends the
+ * key, its working directory and its fetch arguments, each terminated by a
+ * NUL, and then an empty field. The daemon answers with lines of:
+ * <dl>
+ * <dt>{@code F}</dt><dd>the daemon can't serve this request (it needs stdin,
+ *     or settings it can't apply per request, like -v or a different
+ *     connection pool or rate limit); run Fetch locally instead</dd>
+ * <dt>{@code E text}</dt><dd>a line for stderr</dd>
+ * <dt>{@code C length}</dt><dd>followed by that many bytes of the response,
+ *     sent as they arrive</dd>
+ * <dt>{@code X code}</dt><dd>finished, with this exit code; always the last
+ *     line</dd>
+ * </dl>
+ * A client that loses the connection after a {@code C} chunk, before the
+ * {@code X} line, should take the fetch as failed.
+ */
+public class Daemon {
+  public static final String STATE_FILE_NAME = ".oacurl-daemon";
+
+  private static final int MAX_FIELDS = 1024;
+  private static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+  private static Logger logger = Logger.getLogger(Daemon.class.getName());
+
+  private final DaemonOptions options;
+  private final String key;
+  private final Map<String, LoadedFetch> fetches = new HashMap<String, LoadedFetch>();
+
+  public Daemon(DaemonOptions options) {
+    this.options = options;
+
+    byte[] keyBytes = new byte[16];
+    new SecureRandom().nextBytes(keyBytes);
+    StringBuilder keyBuilder = new StringBuilder();
+    for (byte b : keyBytes) {
+      keyBuilder.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+    }
+    this.key = keyBuilder.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    DaemonOptions options = new DaemonOptions();
+    try {
+      options.parse(args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+
+    if (options.isHelp()) {
+      new HelpFormatter().printHelp(" ", options.getOptions());
+      System.exit(0);
+    }
+
+    if (options.isInsecure()) {
+      SSLSocketFactory.getSocketFactory().setHostnameVerifier(new AllowAllHostnameVerifier());
+    }
+
+    LoggingConfig.init(options.isVerbose());
+    LoggingConfig.enableWireLog(options.isVerbose(), options);
+
+    new Daemon(options).serve();
+  }
+
+  /**
+   * Accepts and serves connections until the process is killed.
+   */
+  public void serve() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(options.getPort(), 50,
+        InetAddress.getByName("127.0.0.1"));
+
+    final File stateFile = new File(System.getProperty("user.home"), STATE_FILE_NAME);
+    writeStateFile(stateFile, serverSocket.getLocalPort());
+    final int port = serverSocket.getLocalPort();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        // A daemon started since, after this one stopped answering, owns it.
+        Integer statePort = readStatePort(stateFile);
+        if (statePort != null && statePort == port) {
+          stateFile.delete();
+        }
+      }
+    });
+
+    // Warm up the default credentials so the first fetch doesn't pay for it.
+    getFetch(options);
+
+    System.err.println("oacurl daemon listening on port " + serverSocket.getLocalPort());
+
+    ExecutorService executor = Executors.newFixedThreadPool(options.getThreads());
+    while (true) {
+      executor.execute(new Connection(serverSocket.accept()));
+    }
+  }
+
+  private void writeStateFile(File stateFile, int port) throws IOException {
+    Integer otherPort = readStatePort(stateFile);
+    if (otherPort != null && isListening(otherPort)) {
+      throw new IOException("Another oacurl daemon is running on port " + otherPort
+          + "; stop it first, or delete " + stateFile);
+    }
+
+    stateFile.delete();
+    if (!stateFile.createNewFile()) {
+      throw new IOException("Could not create " + stateFile);
+    }
+
+    // Anyone who can read the key can fetch with our credentials.
+    stateFile.setReadable(false, false);
+    stateFile.setReadable(true, true);
+    stateFile.setWritable(false, false);
+    stateFile.setWritable(true, true);
+
+    FileOutputStream out = new FileOutputStream(stateFile);
+    try {
+      out.write((port + " " + key + "\n").getBytes("US-ASCII"));
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return The port in the state file, or null if there's no readable one.
+   */
+  private static Integer readStatePort(File stateFile) {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(stateFile));
+      try {
+        String line = reader.readLine();
+        return (line != null) ? Integer.valueOf(line.split(" ")[0]) : null;
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static boolean isListening(int port) {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing useful to do here.
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link Fetch} for the login named in the options, loading it
+   * the first time and again whenever its file changes.
+   */
+  private Fetch getFetch(CommonOptions commonOptions) throws IOException {
+    LoginDao loginDao = new LoginDao(commonOptions);
+    File loginFile = loginDao.getFile();
+
+    synchronized (fetches) {
+      LoadedFetch loaded = fetches.get(loginDao.getName());
+      if (loaded == null || loaded.lastModified != loginFile.lastModified()
+          || loaded.length != loginFile.length()) {
+        if (loaded != null) {
+          loaded.fetch.close();
+        }
+        loaded = new LoadedFetch(loginFile,
+            Fetch.load(commonOptions, options.getPoolOptions()));
+        fetches.put(loginDao.getName(), loaded);
+      }
+
+      return loaded.fetch;
+    }
+  }
+
+  /**
+   * Whether the request can be run here rather than in a fresh process.
+   */
+  private boolean canServe(FetchOptions fetchOptions, String[] args) {
+    if (fetchOptions.isHelp() || args.length != 1) {
+      // Let Fetch print the usage.
+      return false;
+    }
+
+    if (fetchOptions.isVerbose() || fetchOptions.getWireCaptureFile() != null
+        || (fetchOptions.isInsecure() && !options.isInsecure())) {
+      // These are process-wide settings.
+      return false;
+    }
+
+    if (fetchOptions.getWriteOut() != null) {
+      // The report goes to stderr after the body, which has no way back to
+      // the client once the body has started.
+      return false;
+    }
+
+    if (!fetchOptions.getPoolOptions().isCompatible(options.getPoolOptions())) {
+      // Our Fetches are set up with our own pool, transport and rate limit.
+      return false;
+    }
+
+    if (fetchOptions.getBatchFile() != null || fetchOptions.getSegments() > 0) {
+      // Long-running, so startup time hardly matters, and better off where
+      // Ctrl-C reaches them.
+      return false;
+    }
+
+    Method method = fetchOptions.getMethod();
+    if ((method == Method.POST || method == Method.PUT)
+        && fetchOptions.getRelated() == null && fetchOptions.getFile() == null) {
+      // The body would come from the client's stdin.
+      return false;
+    }
+
+    return true;
+  }
+
+  private static class LoadedFetch {
+    private final long lastModified;
+    private final long length;
+    private final Fetch fetch;
+
+    public LoadedFetch(File loginFile, Fetch fetch) {
+      this.lastModified = loginFile.lastModified();
+      this.length = loginFile.length();
+      this.fetch = fetch;
+    }
+  }
+
+  /**
+   * Serves one client connection.
+   */
+  private class Connection implements Runnable {
+    private final Socket socket;
+
+    public Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+    public void run() {
+      try {
+        socket.setTcpNoDelay(true);
+
+        List<String> fields = readFields(new BufferedInputStream(socket.getInputStream()));
+        if (fields == null || fields.size() < 2
+            || !MessageDigest.isEqual(key.getBytes("US-ASCII"), fields.get(0).getBytes("UTF-8"))) {
+          logger.log(Level.WARNING, "Rejected connection from " + socket.getRemoteSocketAddress());
+          return;
+        }
+
+        File baseDir = new File(fields.get(1));
+        List<String> args = fields.subList(2, fields.size());
+        handle(baseDir, args.toArray(new String[args.size()]));
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error serving connection", e);
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Nothing useful to do here.
+        }
+      }
+    }
+
+    private void handle(File baseDir, String[] args) throws IOException {
+      OutputStream socketOut = socket.getOutputStream();
+
+      FetchOptions fetchOptions = new FetchOptions();
+      fetchOptions.setBaseDir(baseDir);
+      CommandLine line;
+      try {
+        line = fetchOptions.parse(args);
+      } catch (ParseException e) {
+        writeLine(socketOut, "F");
+        return;
+      }
+
+      if (!canServe(fetchOptions, line.getArgs())) {
+        writeLine(socketOut, "F");
+        return;
+      }
+
+      ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+      PrintStream err = new PrintStream(errBuffer, true);
+      ResponseStream out = new ResponseStream(socketOut, errBuffer);
+
+      int exitCode = 0;
+      try {
+        getFetch(fetchOptions).run(fetchOptions, line.getArgs()[0], out, err);
+      } catch (Exception e) {
+        e.printStackTrace(err);
+        exitCode = 1;
+      }
+
+      err.flush();
+      out.finish(exitCode);
+    }
+
+    /**
+     * Reads NUL-terminated UTF-8 fields up to an empty one.
+     *
+     * @return null if the stream ended or the request was too large.
+     */
+    private List<String> readFields(InputStream in) throws IOException {
+      List<String> fields = new ArrayList<String>();
+      ByteArrayOutputStream field = new ByteArrayOutputStream();
+
+      while (fields.size() < MAX_FIELDS) {
+        int b = in.read();
+        if (b == -1 || field.size() > MAX_FIELD_LENGTH) {
+          return null;
+        } else if (b != 0) {
+          field.write(b);
+        } else if (field.size() == 0) {
+          return fields;
+        } else {
+          fields.add(field.toString("UTF-8"));
+          field.reset();
+        }
+      }
+
+      return null;
+    }
+
+    private void writeLine(OutputStream out, String line) throws IOException {
+      out.write((line + "\n").getBytes("UTF-8"));
+      out.flush();
+    }
+
+    /**
+     * Passes response bytes through to the client as "C" chunks, each
+     * preceded by any stderr output so far.
+     */
+    private class ResponseStream extends OutputStream {
+      private final OutputStream socketOut;
+      private final ByteArrayOutputStream errBuffer;
+
+      public ResponseStream(OutputStream socketOut, ByteArrayOutputStream errBuffer) {
+        this.socketOut = socketOut;
+        this.errBuffer = errBuffer;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return;
+        }
+
+        writeErrLines();
+        socketOut.write(("C " + len + "\n").getBytes("US-ASCII"));
+        socketOut.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        socketOut.flush();
+      }
+
+      private void writeErrLines() throws IOException {
+        if (errBuffer.size() == 0) {
+          return;
+        }
+
+        for (String errLine : errBuffer.toString().split("\r?\n")) {
+          writeLine(socketOut, "E " + errLine);
+        }
+        errBuffer.reset();
+      }
+
+      public void finish(int exitCode) throws IOException {
+        writeErrLines();
+        writeLine(socketOut, "X " + exitCode);
+      }
+    }
+  }
+}
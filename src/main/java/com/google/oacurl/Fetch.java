@@ -14,17 +14,27 @@
 
 package com.google.oacurl;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.oauth.OAuth;
@@ -46,30 +56,46 @@ import net.oauth.http.HttpResponseMessage;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
 import com.google.oacurl.dao.AccessorDao;
 import com.google.oacurl.dao.ConsumerDao;
+import com.google.oacurl.dao.LoginDao;
 import com.google.oacurl.dao.ServiceProviderDao;
 import com.google.oacurl.engine.OAuthEngine;
 import com.google.oacurl.engine.V1OAuthEngine;
 import com.google.oacurl.engine.V2OAuthEngine;
 import com.google.oacurl.engine.WrapOAuthEngine;
+import com.google.oacurl.options.CommonOptions;
+import com.google.oacurl.options.ConnectionPoolOptions;
 import com.google.oacurl.options.FetchOptions;
 import com.google.oacurl.options.FetchOptions.Method;
 import com.google.oacurl.options.OAuthVersion;
+import com.google.oacurl.util.FileBodyInputStream;
+import com.google.oacurl.util.GzipBodyInputStream;
+import com.google.oacurl.util.JsonSelectStream;
+import com.google.oacurl.util.KnownLength;
 import com.google.oacurl.util.LoggingConfig;
 import com.google.oacurl.util.MultipartRelatedInputStream;
 import com.google.oacurl.util.OAuthUtil;
-import com.google.oacurl.util.PropertiesProvider;
+import com.google.oacurl.util.RateLimiter;
+import com.google.oacurl.util.RequestTiming;
+import com.google.oacurl.util.StreamCopier;
+import com.google.oacurl.util.WireLog;
 
 /**
  * Main class for curl-like interactions authenticated by OAuth.
@@ -81,8 +107,55 @@ import com.google.oacurl.util.PropertiesProvider;
  */
 public class Fetch {
 
-  @SuppressWarnings("unused")
-  private static Logger logger = Logger.getLogger(Login.class.getName());
+  private static Logger logger = Logger.getLogger(Fetch.class.getName());
+
+  private static net.oauth.http.HttpClient transport;
+
+  /** The HttpClient 4 pool, or null if another transport is in use. */
+  private final SingleClient pool;
+  private final OAuthClient client;
+  private final OAuthAccessor accessor;
+  private final OAuthEngine engine;
+  private final OAuthVersion version;
+  /** Keeps the access token fresh, if it can expire and be refreshed. */
+  private final TokenRefresher refresher;
+  /** Requests per second to allow each host, or 0 for no limit. */
+  private final double rateLimit;
+  private final double rateBurst;
+  /** Responses kept on disk, or null if they aren't. */
+  private final HttpCache cache;
+
+  private Fetch(ConnectionPoolOptions poolOptions, OAuthAccessor accessor, OAuthEngine engine,
+      OAuthVersion version, LoginDao loginDao) {
+    this.pool = (poolOptions.getTransport() == null)
+        ? SingleClient.getInstance(poolOptions) : null;
+    this.client = newClient(poolOptions);
+    this.accessor = accessor;
+    this.engine = engine;
+    this.version = version;
+    this.refresher = (version != OAuthVersion.V1 && TokenRefresher.canRefresh(accessor))
+        ? new TokenRefresher(engine, client, accessor, loginDao) : null;
+
+    // A limit given to this process beats the one saved with the login.
+    if (poolOptions.getRateLimit() > 0) {
+      this.rateLimit = poolOptions.getRateLimit();
+      this.rateBurst = poolOptions.getRateBurst();
+    } else {
+      this.rateLimit = getRate(accessor, ConsumerDao.RATE_LIMIT_PROPERTY);
+      this.rateBurst = (poolOptions.getRateBurst() > 0)
+          ? poolOptions.getRateBurst() : getRate(accessor, ConsumerDao.RATE_BURST_PROPERTY);
+    }
+
+    this.cache = poolOptions.isCache()
+        ? new HttpCache(new File(poolOptions.getCacheDir()), poolOptions.getCacheSizeBytes(),
+            loginDao.getName())
+        : null;
+  }
+
+  private static double getRate(OAuthAccessor accessor, String name) {
+    Double rate = (Double) accessor.consumer.getProperty(name);
+    return (rate != null) ? rate : 0;
+  }
 
   public static void main(String[] args) throws Exception {
     FetchOptions options = new FetchOptions();
@@ -94,7 +167,8 @@ public class Fetch {
       System.exit(0);
     }
 
-    if (args.length != 1) {
+    boolean batch = options.getBatchFile() != null;
+    if (args.length != (batch ? 0 : 1)) {
       new HelpFormatter().printHelp("url", options.getOptions());
       System.exit(-1);
     }
@@ -104,105 +178,425 @@ public class Fetch {
     }
 
     LoggingConfig.init(options.isVerbose());
-    if (options.isVerbose()) {
-      LoggingConfig.enableWireLog();
+    LoggingConfig.enableWireLog(options.isVerbose(), options);
+
+    Fetch fetch = null;
+    try {
+      fetch = load(options, options.getPoolOptions());
+    } catch (FileNotFoundException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Make sure you've run oacurl-login first!");
+      System.exit(-1);
+    }
+
+    if (batch) {
+      BatchFetch batchFetch = new BatchFetch(fetch, options);
+      if (!batchFetch.run()) {
+        System.exit(-1);
+      }
+      return;
     }
 
-    String url = args[0];
+    // Write straight to the file descriptor: System.out would add a copy and,
+    // worse, swallow errors, so that a closed pipe wouldn't stop the fetch.
+    System.out.flush();
+    StdoutStream stdout = new StdoutStream();
+    try {
+      fetch.run(options, args[0], stdout, System.err);
+    } catch (IOException e) {
+      if (stdout.failed) {
+        System.err.println("Failed writing output: " + e.getMessage());
+      } else if (options.getSegments() > 0 || options.isPaginate()) {
+        // An incomplete segmented download is expected now and then, and
+        // resumable. A page that failed has had its body written already.
+        System.err.println(e.getMessage());
+      } else {
+        throw e;
+      }
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Fetches a single URL as directed by the options, writing the response
+   * to {@code out} and any problems to {@code err}.
+   */
+  public void run(FetchOptions options, String url, OutputStream out, PrintStream err)
+      throws OAuthException, IOException, URISyntaxException {
+    if (options.getSegments() > 0) {
+      try {
+        new SegmentedDownload(this, options, url, err).run();
+      } catch (OAuthProblemException e) {
+        OAuthUtil.printOAuthProblemException(e, err);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted");
+      }
+      return;
+    }
+
+    if (options.isPaginate()) {
+      FileOutputStream fileOut = null;
+      if (options.getOutputFile() != null) {
+        fileOut = new FileOutputStream(options.getOutputFile());
+        out = fileOut;
+      }
+      try {
+        JsonSelectStream select = (options.getSelect() != null)
+            ? new JsonSelectStream(out, options.getSelect()) : null;
+        new Paginator(this, options, url, (select != null) ? select : out).run();
+        if (select != null) {
+          select.finish();
+        }
+      } finally {
+        if (fileOut != null) {
+          fileOut.close();
+        }
+      }
+      return;
+    }
+
+    RequestTiming timing = (options.getWriteOut() != null) ? RequestTiming.start(url) : null;
+    try {
+      InputStream requestBodyStream = null;
+      List<Parameter> headers = new ArrayList<Parameter>(options.getHeaders());
+
+      Method method = options.getMethod();
+      if (method == Method.POST || method == Method.PUT) {
+        List<Entry<String, String>> related = options.getRelated();
+        if (related != null) {
+          requestBodyStream = new MultipartRelatedInputStream(related);
+        } else if (options.getFile() != null) {
+          requestBodyStream = new FileBodyInputStream(options.getFile());
+        } else {
+          requestBodyStream = System.in;
+        }
+
+        if (options.isCompressBody()) {
+          requestBodyStream = compressBody(requestBodyStream, headers);
+        }
+        if (timing != null) {
+          requestBodyStream = timing.countUpload(requestBodyStream);
+        }
+      }
+
+      HttpResponseMessage httpResponse = execute(options.getRetryPolicy(), method, url,
+          requestBodyStream, options.getContentType(), headers);
+
+      err.flush();
+
+      FileOutputStream fileOut = null;
+      if (options.getOutputFile() != null) {
+        fileOut = new FileOutputStream(options.getOutputFile());
+        out = fileOut;
+      }
+
+      JsonSelectStream select = null;
+      if (options.getSelect() != null) {
+        select = new JsonSelectStream(out, options.getSelect());
+        out = select;
+      }
+
+      try {
+        if (options.isInclude()) {
+          Map<String, Object> dump = new HashMap<String, Object>();
+          httpResponse.dump(dump);
+          out.write(dump.get(HttpMessage.RESPONSE).toString().getBytes());
+        }
+
+        // Dump the bytes in the response's encoding.
+        InputStream bodyStream = httpResponse.getBody();
+        long startNanos = System.nanoTime();
+        long bytes;
+        if (bodyStream instanceof FileInputStream && select == null
+            && (fileOut != null || out instanceof StdoutStream)) {
+          // A cache hit, which the OS can copy straight from the file.
+          FileChannel source = ((FileInputStream) bodyStream).getChannel();
+          try {
+            bytes = (fileOut != null)
+                ? StreamCopier.copy(source, fileOut.getChannel())
+                : ((StdoutStream) out).transferFrom(source);
+          } finally {
+            bodyStream.close();
+          }
+        } else if (fileOut != null && select == null) {
+          bytes = StreamCopier.copy(bodyStream, fileOut.getChannel());
+        } else {
+          bytes = StreamCopier.copy(bodyStream, out);
+        }
+        if (select != null) {
+          select.finish();
+        }
+        out.flush();
+        if (timing != null) {
+          timing.addDownloadBytes(bytes);
+        }
 
+        String rate = StreamCopier.describeRate(bytes, System.nanoTime() - startNanos);
+        if (fileOut != null) {
+          err.println("Wrote " + rate + " to " + options.getOutputFile());
+        } else {
+          logger.log(Level.INFO, "Received " + rate);
+        }
+      } finally {
+        if (fileOut != null) {
+          fileOut.close();
+        }
+      }
+    } catch (OAuthProblemException e) {
+      if (timing != null) {
+        timing.setStatusCode(e.getHttpStatusCode());
+      }
+      OAuthUtil.printOAuthProblemException(e, err);
+    } finally {
+      if (timing != null) {
+        timing.finish();
+        err.print(timing.format(options.getWriteOut()));
+        err.flush();
+      }
+    }
+  }
+
+  /**
+   * Loads the saved login properties named by the options and resolves the
+   * accessor and {@link OAuthEngine} for them, so that any number of requests
+   * can be made without re-reading the file.
+   * <p>
+   * All {@link Fetch}es in the process share one connection pool, which is
+   * set up by the first call.
+   *
+   * @throws FileNotFoundException if the login profile does not exist.
+   */
+  public static Fetch load(CommonOptions options, ConnectionPoolOptions poolOptions)
+      throws IOException {
     ServiceProviderDao serviceProviderDao = new ServiceProviderDao();
     ConsumerDao consumerDao = new ConsumerDao();
     AccessorDao accessorDao = new AccessorDao();
 
-    Properties loginProperties = null;
-    try {
-      loginProperties = new PropertiesProvider(options.getLoginFileName()).get();
-    } catch (FileNotFoundException e) {
-      System.err.println(".oacurl.properties file not found in homedir");
-      System.err.println("Make sure you've run oacurl-login first!");
-      System.exit(-1);
-    }
+    LoginDao loginDao = new LoginDao(options);
+    Properties loginProperties = loginDao.load();
 
-    OAuthServiceProvider serviceProvider = serviceProviderDao.nullServiceProvider();
+    OAuthServiceProvider serviceProvider = serviceProviderDao.loadServiceProvider(
+        loginProperties);
     OAuthConsumer consumer = consumerDao.loadConsumer(loginProperties, serviceProvider);
     OAuthAccessor accessor = accessorDao.loadAccessor(loginProperties, consumer);
 
-    OAuthClient client = new OAuthClient(new HttpClient4(SingleClient.HTTP_CLIENT_POOL));
-
     OAuthVersion version = (loginProperties.containsKey("oauthVersion")) ?
         OAuthVersion.valueOf(loginProperties.getProperty("oauthVersion")) :
           OAuthVersion.V1;
 
-    OAuthEngine engine;
+    return new Fetch(poolOptions, accessor, newEngine(version), version, loginDao);
+  }
+
+  /**
+   * Stops any background work for this {@link Fetch}. Requests can still be
+   * made with it.
+   */
+  public void close() {
+    if (refresher != null) {
+      refresher.close();
+    }
+  }
+
+  /**
+   * Returns a client on the process-wide transport, setting the transport up
+   * with the given settings if it isn't already.
+   */
+  static OAuthClient newClient(ConnectionPoolOptions poolOptions) {
+    return new OAuthClient(getTransport(poolOptions));
+  }
+
+  /**
+   * Returns the process-wide transport: the one named by the options, or
+   * else HttpClient 4 on the shared connection pool.
+   */
+  private static synchronized net.oauth.http.HttpClient getTransport(
+      ConnectionPoolOptions poolOptions) {
+    if (transport != null) {
+      return transport;
+    }
+
+    String className = poolOptions.getTransport();
+    if (className == null) {
+      transport = new HttpClient4(SingleClient.getInstance(poolOptions));
+      return transport;
+    }
+
+    // Prefer a constructor that takes the options, so that the transport can
+    // size itself the same way the pool would.
+    try {
+      Class<? extends net.oauth.http.HttpClient> transportClass =
+          Class.forName(className).asSubclass(net.oauth.http.HttpClient.class);
+      try {
+        transport = transportClass.getConstructor(ConnectionPoolOptions.class)
+            .newInstance(poolOptions);
+      } catch (NoSuchMethodException e) {
+        transport = transportClass.newInstance();
+      }
+    } catch (InvocationTargetException e) {
+      throw new IllegalArgumentException("Could not create transport " + className,
+          e.getCause());
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Could not create transport " + className, e);
+    }
+    logger.log(Level.INFO, "Using transport " + className);
+    return transport;
+  }
+
+  /**
+   * Gzips the body on its way out, adding the Content-Encoding header that
+   * says so.
+   * <p>
+   * This is safe to do after signing: OAuth 1.0a signs only the URL and
+   * form parameters, and form-encoded bodies are never compressed (see
+   * {@link FetchOptions}), so no signature covers the bytes that change.
+   */
+  public static InputStream compressBody(InputStream bodyStream, List<Parameter> headers) {
+    headers.add(new OAuth.Parameter(HttpMessage.CONTENT_ENCODING, HttpMessageDecoder.GZIP));
+    return new GzipBodyInputStream(bodyStream);
+  }
+
+  static OAuthEngine newEngine(OAuthVersion version) {
     switch (version) {
     case V1:
-      engine = new V1OAuthEngine();
-      break;
+      return new V1OAuthEngine();
     case V2:
-      engine = new V2OAuthEngine();
-      break;
+      return new V2OAuthEngine();
     case WRAP:
-      engine = new WrapOAuthEngine();
-      break;
+      return new WrapOAuthEngine();
     default:
       throw new IllegalArgumentException("Unknown version: " + version);
     }
+  }
 
-    try {
-      OAuthMessage request;
+  /**
+   * Signs and sends a single request. Safe to call from several threads at
+   * once, since all requests share the one thread-safe transport.
+   *
+   * @param bodyStream Body to send, or null for none.
+   * @param contentType Content-Type for the body. Ignored if there is no body.
+   * @param headers Extra headers to send with the request.
+   * @throws OAuthProblemException for V1 requests that don't return a 200.
+   */
+  public HttpResponseMessage execute(Method method, String url, InputStream bodyStream,
+      String contentType, List<Parameter> headers)
+      throws OAuthException, IOException, URISyntaxException {
+    return execute(RetryPolicy.NONE, method, url, bodyStream, contentType, headers);
+  }
 
-      List<Entry<String, String>> related = options.getRelated();
+  /**
+   * Like {@link #execute(Method, String, InputStream, String, List)}, but
+   * tries again as the policy allows if the request fails. Each attempt is
+   * signed afresh.
+   * <p>
+   * If there's a cache, a GET may be answered from it, and the response's
+   * body is then a {@link FileInputStream}.
+   */
+  public HttpResponseMessage execute(final RetryPolicy retryPolicy, final Method method,
+      final String url, final InputStream bodyStream, final String contentType,
+      List<Parameter> headers) throws OAuthException, IOException, URISyntaxException {
+    if (cache == null) {
+      return executeRetrying(retryPolicy, method, url, bodyStream, contentType, headers);
+    }
 
-      Method method = options.getMethod();
-      if (method == Method.POST || method == Method.PUT) {
-        InputStream bodyStream;
-        if (related != null) {
-          bodyStream = new MultipartRelatedInputStream(related);
-        } else if (options.getFile() != null) {
-          bodyStream = new FileInputStream(options.getFile());
-        } else {
-          bodyStream = System.in;
-        }
-        request = newRequestMessage(accessor, method, url, bodyStream, engine);
-        request.getHeaders().add(new OAuth.Parameter("Content-Type", options.getContentType()));
-      } else {
-        request = newRequestMessage(accessor, method, url, null, engine);
+    return cache.execute(method, url, bodyStream != null, headers, new HttpCache.Origin() {
+      public HttpResponseMessage execute(List<Parameter> sentHeaders)
+          throws OAuthException, IOException, URISyntaxException {
+        return executeRetrying(retryPolicy, method, url, bodyStream, contentType, sentHeaders);
       }
+    });
+  }
 
-      List<Parameter> headers = options.getHeaders();
-      addHeadersToRequest(request, headers);
-
-      HttpResponseMessage httpResponse;
-      if (version == OAuthVersion.V1) {
-        OAuthResponseMessage response;
-        response = client.access(request, ParameterStyle.AUTHORIZATION_HEADER);
-        httpResponse = response.getHttpResponse();
-      } else {
-        HttpMessage httpRequest = new HttpMessage(
-            request.method, new URL(request.URL), request.getBodyAsStream());
-        httpRequest.headers.addAll(request.getHeaders());
-        httpResponse = client.getHttpClient().execute(httpRequest, client.getHttpParameters());
-        httpResponse = HttpMessageDecoder.decode(httpResponse);
+  private HttpResponseMessage executeRetrying(RetryPolicy retryPolicy, final Method method,
+      final String url, final InputStream bodyStream, final String contentType,
+      final List<Parameter> headers) throws OAuthException, IOException, URISyntaxException {
+    return retryPolicy.execute(method, url, bodyStream != null, new RetryPolicy.Attempt() {
+      public HttpResponseMessage execute()
+          throws OAuthException, IOException, URISyntaxException {
+        return executeRefreshing(method, url, bodyStream, contentType, headers);
       }
+    });
+  }
 
-      System.err.flush();
+  private HttpResponseMessage executeRefreshing(Method method, String url,
+      InputStream bodyStream, String contentType, List<Parameter> headers)
+      throws OAuthException, IOException, URISyntaxException {
+    if (refresher == null) {
+      return execute(accessor, method, url, bodyStream, contentType, headers);
+    }
 
-      if (options.isInclude()) {
-        Map<String, Object> dump = new HashMap<String, Object>();
-        httpResponse.dump(dump);
-        System.out.print(dump.get(HttpMessage.RESPONSE));
+    OAuthAccessor current = refresher.getAccessor();
+    HttpResponseMessage httpResponse = execute(current, method, url, bodyStream, contentType,
+        headers);
+
+    // The token was revoked or expired early. Refresh it either way, but only
+    // try again if there's no body, since a body can't be sent twice.
+    if (httpResponse.getStatusCode() == 401) {
+      OAuthAccessor refreshed = refresher.refresh(current);
+      if (refreshed != current && bodyStream == null) {
+        logger.log(Level.INFO, "Retrying with refreshed access token");
+        InputStream body = httpResponse.getBody();
+        if (body != null) {
+          body.close();
+        }
+        httpResponse = execute(refreshed, method, url, bodyStream, contentType, headers);
       }
+    }
+
+    return httpResponse;
+  }
+
+  private HttpResponseMessage execute(OAuthAccessor accessor, Method method, String url,
+      InputStream bodyStream, String contentType, List<Parameter> headers)
+      throws OAuthException, IOException, URISyntaxException {
+    if (rateLimit > 0) {
+      RateLimiter.get(new URL(url).getHost(), accessor.consumer.consumerKey, rateLimit,
+          (rateBurst > 0) ? rateBurst : rateLimit).acquire();
+    }
 
-      // Dump the bytes in the response's encoding.
-      InputStream bodyStream = httpResponse.getBody();
-      byte[] buf = new byte[1024];
-      int count;
-      while ((count = bodyStream.read(buf)) > -1) {
-        System.out.write(buf, 0, count);
+    OAuthMessage request = newRequestMessage(accessor, method, url, bodyStream, engine);
+    if (bodyStream != null) {
+      request.getHeaders().add(new OAuth.Parameter("Content-Type", contentType));
+
+      // HttpClient streams the body either way, but only sends it chunked if
+      // it doesn't have a length, which not all servers accept.
+      long length = (bodyStream instanceof KnownLength)
+          ? ((KnownLength) bodyStream).getLength() : -1;
+      if (length >= 0 && !hasHeader(headers, HttpMessage.CONTENT_LENGTH)) {
+        request.getHeaders().add(
+            new OAuth.Parameter(HttpMessage.CONTENT_LENGTH, Long.toString(length)));
       }
-    } catch (OAuthProblemException e) {
-      OAuthUtil.printOAuthProblemException(e);
     }
+
+    // Both paths below decode gzip and deflate responses as they're read, so
+    // there's no reason not to ask for them.
+    if (!hasHeader(headers, HttpMessage.ACCEPT_ENCODING)) {
+      request.getHeaders().add(
+          new OAuth.Parameter(HttpMessage.ACCEPT_ENCODING, HttpMessageDecoder.ACCEPTED));
+    }
+
+    addHeadersToRequest(request, headers);
+
+    HttpResponseMessage httpResponse;
+    if (version == OAuthVersion.V1) {
+      // OAuthClient#access decodes the response itself.
+      OAuthResponseMessage response;
+      response = client.access(request, ParameterStyle.AUTHORIZATION_HEADER);
+      httpResponse = response.getHttpResponse();
+    } else {
+      HttpMessage httpRequest = new HttpMessage(
+          request.method, new URL(request.URL), request.getBodyAsStream());
+      httpRequest.headers.addAll(request.getHeaders());
+      httpResponse = client.getHttpClient().execute(httpRequest, client.getHttpParameters());
+      httpResponse = HttpMessageDecoder.decode(httpResponse);
+    }
+
+    RequestTiming timing = RequestTiming.current();
+    if (timing != null) {
+      timing.markStartTransfer();
+      timing.setStatusCode(httpResponse.getStatusCode());
+    }
+
+    return httpResponse;
   }
 
   private static OAuthMessage newRequestMessage(OAuthAccessor accessor,
@@ -225,30 +619,74 @@ public class Fetch {
     OAuthMessage message = new OAuthMessage(methodStr, url, null, bodyStream);
     engine.authMessage(accessor, message);
 
+    RequestTiming timing = RequestTiming.current();
+    if (timing != null) {
+      timing.markSigned();
+    }
+
     return message;
   }
 
-  private static void addHeadersToRequest(OAuthMessage request, List<Parameter> headers) {
+  private void addHeadersToRequest(OAuthMessage request, List<Parameter> headers) {
     // HACK(phopkins): If someone added their own Expect header, then tell
     // Apache not to add its own. This is a bit hacky, but gets around that
     // the RequestExpectContinue class doesn't check for an existing header
     // before adding its own.
     //
     // Fix for: http://code.google.com/p/oacurl/issues/detail?id=1
-    boolean hasExpect = false;
+    if (pool != null && hasHeader(headers, HTTP.EXPECT_DIRECTIVE)) {
+      HttpProtocolParams.setUseExpectContinue(pool.getHttpClient().getParams(), false);
+    }
+
+    request.getHeaders().addAll(headers);
+  }
+
+  private static boolean hasHeader(List<Parameter> headers, String name) {
     for (Parameter param : headers) {
-      if (param.getKey().equalsIgnoreCase(HTTP.EXPECT_DIRECTIVE)) {
-        hasExpect = true;
-        break;
+      if (param.getKey().equalsIgnoreCase(name)) {
+        return true;
       }
     }
+    return false;
+  }
 
-    if (hasExpect) {
-      HttpProtocolParams.setUseExpectContinue(
-          SingleClient.HTTP_CLIENT_POOL.getHttpClient().getParams(), false);
+  /**
+   * Unbuffered stdout that remembers whether a write failed, so that we can
+   * tell a closed pipe from a failed fetch.
+   */
+  private static class StdoutStream extends FileOutputStream {
+    private boolean failed;
+
+    public StdoutStream() {
+      super(FileDescriptor.out);
     }
 
-    request.getHeaders().addAll(headers);
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        super.write(b, off, len);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    /**
+     * Copies the rest of the file out, without it passing through the JVM.
+     */
+    public long transferFrom(FileChannel source) throws IOException {
+      try {
+        return StreamCopier.copy(source, getChannel());
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
   }
 
   /**
@@ -256,15 +694,57 @@ public class Fetch {
    * underlying {@link DefaultHttpClient} object.
    */
   private static class SingleClient implements HttpClientPool {
-    public static final SingleClient HTTP_CLIENT_POOL = new SingleClient();
-
-    private SingleClient() {
-      HttpClient client = new DefaultHttpClient();
-      ClientConnectionManager mgr = client.getConnectionManager();
-      if (!(mgr instanceof ThreadSafeClientConnManager)) {
-        HttpParams params = client.getParams();
-        client = new DefaultHttpClient(new ThreadSafeClientConnManager(
-            params, mgr.getSchemeRegistry()), params);
+    private static SingleClient instance;
+
+    /**
+     * Returns the process-wide client, creating it with the given settings
+     * the first time.
+     */
+    public static synchronized SingleClient getInstance(ConnectionPoolOptions poolOptions) {
+      if (instance == null) {
+        instance = new SingleClient(poolOptions);
+      }
+      return instance;
+    }
+
+    private SingleClient(ConnectionPoolOptions poolOptions) {
+      // The default client's params have the protocol version, user agent and
+      // such filled in for us.
+      HttpClient defaultClient = new DefaultHttpClient();
+      HttpParams params = defaultClient.getParams();
+      SchemeRegistry schemeRegistry = defaultClient.getConnectionManager().getSchemeRegistry();
+
+      // Out of the box HttpClient allows only 2 connections per host, which
+      // serializes anything more concurrent than that.
+      ConnManagerParams.setMaxTotalConnections(params, poolOptions.getMaxTotal());
+      ConnManagerParams.setMaxConnectionsPerRoute(params,
+          new ConnPerRouteBean(poolOptions.getMaxPerRoute()));
+      HttpConnectionParams.setStaleCheckingEnabled(params, poolOptions.isStaleCheck());
+      HttpConnectionParams.setSocketBufferSize(params, poolOptions.getSocketBufferSize());
+      HttpConnectionParams.setTcpNoDelay(params, poolOptions.isTcpNoDelay());
+
+      DefaultHttpClient client = new DefaultHttpClient(
+          WireLog.newConnectionManager(params, schemeRegistry), params);
+
+      RequestTiming.install(client, schemeRegistry);
+
+      // Lets AsyncFetch close the connection under a cancelled call.
+      client.addRequestInterceptor(new AsyncFetch.ConnectionInterceptor());
+
+      final long keepAliveMillis = poolOptions.getKeepAliveSeconds() * 1000L;
+      if (keepAliveMillis > 0) {
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+          @Override
+          public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return (duration < 0 || duration > keepAliveMillis) ? keepAliveMillis : duration;
+          }
+        });
+      }
+
+      if (poolOptions.getIdleTimeoutSeconds() > 0) {
+        new IdleConnectionEvictor(client.getConnectionManager(),
+            poolOptions.getIdleTimeoutSeconds()).start();
       }
 
       this.client = client;
@@ -280,4 +760,37 @@ public class Fetch {
       return client;
     }
   }
+
+  /**
+   * Background thread that closes pooled connections that have been idle too
+   * long or whose keep-alive has run out, so we don't later try to reuse a
+   * connection that the server has dropped.
+   */
+  private static class IdleConnectionEvictor extends Thread {
+    private final ClientConnectionManager connectionManager;
+    private final int idleTimeoutSeconds;
+
+    public IdleConnectionEvictor(ClientConnectionManager connectionManager,
+        int idleTimeoutSeconds) {
+      super("IdleConnectionEvictor");
+      setDaemon(true);
+      this.connectionManager = connectionManager;
+      this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    @Override
+    public void run() {
+      long sleepMillis = Math.min(idleTimeoutSeconds * 1000L, 5000L);
+      while (true) {
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+      }
+    }
+  }
 }
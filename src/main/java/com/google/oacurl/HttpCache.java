@@ -0,0 +1,883 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.oauth.OAuth;
+import net.oauth.OAuth.Parameter;
+import net.oauth.OAuthException;
+import net.oauth.http.HttpMessageDecoder;
+import net.oauth.http.HttpResponseMessage;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.RequestTiming;
+import com.google.oacurl.util.StreamCopier;
+
+/**
+ * Keeps 200 responses to GETs on disk, so that fetching something that
+ * hasn't changed costs at most a round trip with no body.
+ * <p>
+ * Entries are keyed by the URL, the login (see
+ * {@link com.google.oacurl.dao.LoginDao#getName}), and the values of any
+ * request headers the response Varies by, so one login's responses are never
+ * served to another. Authorization is left out of the Vary match, since the
+ * login already stands for it.
+ * <p>
+ * A fresh entry, by its Cache-Control max-age, Expires or (a tenth of its
+ * age when stored) Last-Modified, is served without asking the server. A
+ * stale one is revalidated with If-None-Match and If-Modified-Since, and a
+ * 304 refreshes it. no-cache, on the request or the response, always
+ * revalidates; no-store, on either, keeps the response out of the cache;
+ * and a request max-age caps how old a hit may be. Requests with a body, a
+ * Range or conditions of their own go straight to the server, and a POST,
+ * PUT or DELETE that succeeds drops what's kept for its URL.
+ * <p>
+ * Each entry is a single file: a fixed-length first line, the response's
+ * headers as a properties file, then the body as decoded. It's written to
+ * the side as the body streams to the caller, and renamed into place once
+ * the body is complete, so readers, in this process or another, never see
+ * half an entry. A hit's body is returned as a {@link FileInputStream}, so
+ * that it can be copied out with {@link java.nio.channels.FileChannel#transferTo}.
+ * <p>
+ * An entry's modification time is when it was last used. After each store,
+ * the least recently used entries are deleted until the cache fits in its
+ * size limit.
+ */
+public class HttpCache {
+  public static final String DEFAULT_DIR_NAME = ".oacurl-cache";
+
+  private static final String MAGIC = "OACURL-CACHE 1";
+  /** MAGIC, a space, the length of the headers in 10 digits, and a newline. */
+  private static final int FIRST_LINE_LENGTH = MAGIC.length() + 12;
+
+  private static final String PART_SUFFIX = ".part";
+  private static final String VARY_SUFFIX = ".vary";
+  /** Leftovers from a process that died mid-store are deleted after this. */
+  private static final long PART_MAX_AGE_MILLIS = 60 * 60 * 1000;
+  /** Longest a response with only a Last-Modified is taken to be fresh. */
+  private static final long MAX_HEURISTIC_MILLIS = 24 * 60 * 60 * 1000;
+
+  /** Headers about the connection or the encoding, which aren't kept. */
+  private static final List<String> UNSTORED_HEADERS = Arrays.asList(
+      "connection", "keep-alive", "transfer-encoding", "content-encoding", "content-length");
+
+  private static Logger logger = Logger.getLogger(HttpCache.class.getName());
+
+  /** So that threads storing at once don't all evict at once. */
+  private static final Object evictLock = new Object();
+
+  private final File dir;
+  private final long maxBytes;
+  private final String login;
+
+  /**
+   * Sends a request to the server, with the given headers.
+   */
+  public interface Origin {
+    HttpResponseMessage execute(List<Parameter> headers)
+        throws OAuthException, IOException, URISyntaxException;
+  }
+
+  /**
+   * @param dir Where to keep entries. Created, readable only by this user, if
+   *     it doesn't exist.
+   * @param maxBytes How big to let the cache grow.
+   * @param login Names the login requests are made with.
+   */
+  public HttpCache(File dir, long maxBytes, String login) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.login = login;
+
+    if (!dir.isDirectory() && dir.mkdirs()) {
+      // Bodies are stored as they came, so keep them from other users.
+      dir.setReadable(false, false);
+      dir.setReadable(true, true);
+      dir.setExecutable(false, false);
+      dir.setExecutable(true, true);
+    }
+  }
+
+  /**
+   * Answers a request from the cache, or sends it to the server and keeps
+   * the response if it can.
+   *
+   * @param headers Extra headers for the request.
+   */
+  public HttpResponseMessage execute(Method method, String url, boolean hasBody,
+      List<Parameter> headers, Origin origin)
+      throws OAuthException, IOException, URISyntaxException {
+    if (method != Method.GET) {
+      HttpResponseMessage response = origin.execute(headers);
+      int status = response.getStatusCode();
+      if (status >= 200 && status < 400) {
+        invalidate(url);
+      }
+      return response;
+    }
+
+    CacheControl requestControl = new CacheControl(getHeader(headers, "Cache-Control"));
+    if (hasBody || requestControl.noStore || getHeader(headers, "Range") != null
+        || getHeader(headers, "If-None-Match") != null
+        || getHeader(headers, "If-Modified-Since") != null) {
+      return origin.execute(headers);
+    }
+
+    String primaryKey = hash(method + " " + url + " " + login);
+    Entry entry = load(primaryKey, headers);
+    boolean served = false;
+    try {
+      long now = System.currentTimeMillis();
+      if (entry != null && entry.isFresh(requestControl, now)) {
+        logger.log(Level.INFO, "Cache hit for " + url);
+        entry.file.setLastModified(now);
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+          timing.markStartTransfer();
+        }
+        served = true;
+        return serve(url, entry);
+      }
+
+      List<Parameter> sent = headers;
+      if (entry != null) {
+        sent = new ArrayList<Parameter>(headers);
+        String etag = getHeader(entry.headers, "ETag");
+        if (etag != null) {
+          sent.add(new OAuth.Parameter("If-None-Match", etag));
+        }
+        String lastModified = getHeader(entry.headers, "Last-Modified");
+        if (lastModified != null) {
+          sent.add(new OAuth.Parameter("If-Modified-Since", lastModified));
+        }
+      }
+
+      HttpResponseMessage response = origin.execute(sent);
+      int status = response.getStatusCode();
+      if (status == 304 && entry != null) {
+        // A 304 has no body, and HttpClient has already let its connection go.
+        logger.log(Level.INFO, "Cache entry for " + url + " revalidated");
+        entry = refresh(url, entry, response);
+        served = true;
+        return serve(url, entry);
+      }
+
+      if (status == 200 && isStorable(requestControl, response)) {
+        return new StoringResponse(response, primaryKey, headers);
+      }
+      return response;
+    } finally {
+      if (entry != null && !served) {
+        entry.in.close();
+      }
+    }
+  }
+
+  private HttpResponseMessage serve(String url, Entry entry) throws IOException {
+    RequestTiming timing = RequestTiming.current();
+    if (timing != null) {
+      timing.setStatusCode(200);
+    }
+    return new CachedResponse(new URL(url), entry.headers, entry.in);
+  }
+
+  private static boolean isStorable(CacheControl requestControl, HttpResponseMessage response) {
+    if (requestControl.noStore || new CacheControl(response.getHeader("Cache-Control")).noStore) {
+      return false;
+    }
+
+    String vary = response.getHeader("Vary");
+    if (vary != null && vary.indexOf('*') != -1) {
+      return false;
+    }
+
+    // Something that's never fresh and can't be revalidated is no use kept.
+    return response.getHeader("ETag") != null || response.getHeader("Last-Modified") != null
+        || getFreshnessLifetime(response.headers, System.currentTimeMillis()) > 0;
+  }
+
+  /**
+   * Drops every entry for the URL, whatever it Varied by.
+   */
+  private void invalidate(String url) {
+    final String prefix = hash(Method.GET + " " + url + " " + login);
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      if (file.getName().startsWith(prefix) && !file.getName().endsWith(PART_SUFFIX)) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return The entry for the request, open and positioned at its body, or
+   *     null if there's none.
+   */
+  private Entry load(String primaryKey, List<Parameter> headers) {
+    File file = null;
+    try {
+      List<String> varyNames = readVary(primaryKey);
+      file = new File(dir, entryName(primaryKey, varyNames, headers));
+      if (!file.isFile()) {
+        return null;
+      }
+      return Entry.read(file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Ignoring unreadable cache entry " + file, e);
+      if (file != null) {
+        file.delete();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Each URL's Vary is kept next to its entries, since it has to be known to
+   * find the right one.
+   */
+  private List<String> readVary(String primaryKey) throws IOException {
+    File file = new File(dir, primaryKey + VARY_SUFFIX);
+    if (!file.isFile()) {
+      return Collections.emptyList();
+    }
+
+    Properties vary = new Properties();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      vary.load(in);
+    } finally {
+      in.close();
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return parseVary(vary.getProperty("vary"));
+  }
+
+  private void writeVary(String primaryKey, List<String> varyNames) throws IOException {
+    File file = new File(dir, primaryKey + VARY_SUFFIX);
+    if (varyNames.isEmpty()) {
+      file.delete();
+      return;
+    }
+
+    StringBuilder names = new StringBuilder();
+    for (String name : varyNames) {
+      names.append((names.length() == 0) ? "" : ", ").append(name);
+    }
+    Properties vary = new Properties();
+    vary.setProperty("vary", names.toString());
+
+    File part = newPart();
+    FileOutputStream out = new FileOutputStream(part);
+    try {
+      vary.store(out, null);
+    } finally {
+      out.close();
+    }
+    rename(part, file);
+  }
+
+  private static List<String> parseVary(String vary) {
+    List<String> names = new ArrayList<String>();
+    if (vary == null) {
+      return names;
+    }
+
+    for (String name : vary.split(",")) {
+      name = name.trim().toLowerCase(Locale.US);
+      if (name.length() > 0 && !name.equals("authorization") && !names.contains(name)) {
+        names.add(name);
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static String entryName(String primaryKey, List<String> varyNames,
+      List<Parameter> headers) {
+    if (varyNames.isEmpty()) {
+      return primaryKey;
+    }
+
+    StringBuilder values = new StringBuilder();
+    for (String name : varyNames) {
+      String value = getHeader(headers, name);
+      if (value == null && name.equals("accept-encoding")) {
+        // Fetch asks for these unless told otherwise.
+        value = HttpMessageDecoder.ACCEPTED;
+      }
+      values.append(name).append(": ").append(value).append('\n');
+    }
+    return primaryKey + "-" + hash(values.toString()).substring(0, 16);
+  }
+
+  /**
+   * Updates an entry's headers from a 304, and marks it as stored now.
+   *
+   * @return The updated entry, positioned at its body.
+   */
+  private Entry refresh(String url, Entry entry, HttpResponseMessage notModified)
+      throws IOException {
+    List<Map.Entry<String, String>> headers =
+        new ArrayList<Map.Entry<String, String>>(entry.headers);
+    for (Map.Entry<String, String> header : notModified.headers) {
+      if (isStored(header.getKey())) {
+        for (Iterator<Map.Entry<String, String>> i = headers.iterator(); i.hasNext();) {
+          if (i.next().getKey().equalsIgnoreCase(header.getKey())) {
+            i.remove();
+          }
+        }
+      }
+    }
+    for (Map.Entry<String, String> header : notModified.headers) {
+      if (isStored(header.getKey())) {
+        headers.add(header);
+      }
+    }
+
+    File part = null;
+    try {
+      part = newPart();
+      FileOutputStream out = startEntry(part, url, System.currentTimeMillis(), headers);
+      try {
+        StreamCopier.copy(entry.in.getChannel(), out.getChannel());
+      } finally {
+        out.close();
+      }
+      rename(part, entry.file);
+      part = null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Couldn't update cache entry " + entry.file, e);
+      entry.in.getChannel().position(entry.bodyOffset);
+      return entry;
+    } finally {
+      if (part != null) {
+        part.delete();
+      }
+    }
+
+    entry.in.close();
+    return Entry.read(entry.file);
+  }
+
+  private File newPart() throws IOException {
+    return File.createTempFile("entry", PART_SUFFIX, dir);
+  }
+
+  /**
+   * Creates an entry file with everything but the body, to be written next.
+   */
+  private static FileOutputStream startEntry(File file, String url, long responseMillis,
+      List<Map.Entry<String, String>> headers) throws IOException {
+    Properties meta = new Properties();
+    meta.setProperty("url", url);
+    meta.setProperty("responseTime", Long.toString(responseMillis));
+    int i = 0;
+    for (Map.Entry<String, String> header : headers) {
+      if (isStored(header.getKey())) {
+        meta.setProperty("header." + i++, header.getKey() + ": " + header.getValue());
+      }
+    }
+
+    ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+    meta.store(metaBytes, null);
+
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(String.format("%s %010d\n", MAGIC, metaBytes.size()).getBytes("ISO-8859-1"));
+      metaBytes.writeTo(out);
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    return out;
+  }
+
+  private static boolean isStored(String header) {
+    return !UNSTORED_HEADERS.contains(header.toLowerCase(Locale.US));
+  }
+
+  /**
+   * Moves a finished file into place, over whatever was there.
+   */
+  private static void rename(File from, File to) throws IOException {
+    // Windows won't rename over an existing file.
+    if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+      throw new IOException("Couldn't rename " + from + " to " + to);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache fits.
+   */
+  private void evict() {
+    synchronized (evictLock) {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      long total = 0;
+      List<File> entries = new ArrayList<File>();
+      final Map<File, Long> used = new HashMap<File, Long>();
+      for (File file : files) {
+        long modified = file.lastModified();
+        if (file.getName().endsWith(PART_SUFFIX)) {
+          if (now - modified > PART_MAX_AGE_MILLIS) {
+            file.delete();
+          }
+          continue;
+        }
+
+        total += file.length();
+        entries.add(file);
+        used.put(file, modified);
+      }
+
+      if (total <= maxBytes) {
+        return;
+      }
+
+      Collections.sort(entries, new Comparator<File>() {
+        public int compare(File a, File b) {
+          return used.get(a).compareTo(used.get(b));
+        }
+      });
+
+      int evicted = 0;
+      for (File file : entries) {
+        if (total <= maxBytes) {
+          break;
+        }
+        long length = file.length();
+        if (file.delete()) {
+          total -= length;
+          evicted++;
+        }
+      }
+      logger.log(Level.INFO, "Evicted " + evicted + " cache entries; " + total + " bytes left");
+    }
+  }
+
+  private static String getHeader(List<? extends Map.Entry<String, String>> headers,
+      String name) {
+    for (Map.Entry<String, String> header : headers) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return How long after it was sent the response is fresh for, in
+   *     milliseconds.
+   */
+  private static long getFreshnessLifetime(List<? extends Map.Entry<String, String>> headers,
+      long responseMillis) {
+    CacheControl control = new CacheControl(getHeader(headers, "Cache-Control"));
+    if (control.maxAgeSeconds >= 0) {
+      return control.maxAgeSeconds * 1000;
+    }
+
+    long date = parseDate(getHeader(headers, "Date"), responseMillis);
+    String expires = getHeader(headers, "Expires");
+    if (expires != null) {
+      // A bad Expires, like "0", means already expired.
+      return Math.max(0, parseDate(expires, date) - date);
+    }
+
+    String lastModified = getHeader(headers, "Last-Modified");
+    if (lastModified != null) {
+      long modified = parseDate(lastModified, date);
+      return Math.min(MAX_HEURISTIC_MILLIS, Math.max(0, date - modified) / 10);
+    }
+    return 0;
+  }
+
+  private static long parseDate(String date, long defaultMillis) {
+    if (date == null) {
+      return defaultMillis;
+    }
+
+    try {
+      return DateUtils.parseDate(date).getTime();
+    } catch (DateParseException e) {
+      return defaultMillis;
+    }
+  }
+
+  private static String hash(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The Cache-Control directives that matter to a private cache that never
+   * serves stale responses.
+   */
+  private static class CacheControl {
+    boolean noCache;
+    boolean noStore;
+    long maxAgeSeconds = -1;
+
+    public CacheControl(String value) {
+      if (value == null) {
+        return;
+      }
+
+      for (String directive : value.split(",")) {
+        directive = directive.trim().toLowerCase(Locale.US);
+        if (directive.equals("no-cache") || directive.startsWith("no-cache=")) {
+          noCache = true;
+        } else if (directive.equals("no-store")) {
+          noStore = true;
+        } else if (directive.startsWith("max-age=")) {
+          try {
+            maxAgeSeconds = Math.max(0, Long.parseLong(
+                directive.substring("max-age=".length()).replace("\"", "")));
+          } catch (NumberFormatException e) {
+            // A bad max-age is no max-age, so fall back on the others.
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A stored response, open at its body.
+   */
+  private static class Entry {
+    final File file;
+    final FileInputStream in;
+    final long bodyOffset;
+    final long responseMillis;
+    final List<Map.Entry<String, String>> headers;
+
+    private Entry(File file, FileInputStream in, long bodyOffset, long responseMillis,
+        List<Map.Entry<String, String>> headers) {
+      this.file = file;
+      this.in = in;
+      this.bodyOffset = bodyOffset;
+      this.responseMillis = responseMillis;
+      this.headers = headers;
+    }
+
+    public static Entry read(File file) throws IOException {
+      FileInputStream in = new FileInputStream(file);
+      boolean ok = false;
+      try {
+        String firstLine = new String(readFully(in, FIRST_LINE_LENGTH), "ISO-8859-1");
+        if (!firstLine.startsWith(MAGIC + " ") || !firstLine.endsWith("\n")) {
+          throw new IOException("Not a cache entry: " + file);
+        }
+
+        int metaLength;
+        try {
+          metaLength = Integer.parseInt(
+              firstLine.substring(MAGIC.length() + 1, FIRST_LINE_LENGTH - 1));
+        } catch (NumberFormatException e) {
+          throw new IOException("Not a cache entry: " + file);
+        }
+
+        Properties meta = new Properties();
+        meta.load(new ByteArrayInputStream(readFully(in, metaLength)));
+
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        String header;
+        for (int i = 0; (header = meta.getProperty("header." + i)) != null; i++) {
+          int colon = header.indexOf(": ");
+          headers.add(new OAuth.Parameter(header.substring(0, colon),
+              header.substring(colon + 2)));
+        }
+
+        long responseMillis;
+        try {
+          responseMillis = Long.parseLong(meta.getProperty("responseTime"));
+        } catch (NumberFormatException e) {
+          throw new IOException("Not a cache entry: " + file);
+        }
+
+        ok = true;
+        return new Entry(file, in, FIRST_LINE_LENGTH + metaLength, responseMillis, headers);
+      } finally {
+        if (!ok) {
+          in.close();
+        }
+      }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+      byte[] bytes = new byte[length];
+      int read = 0;
+      while (read < length) {
+        int count = in.read(bytes, read, length - read);
+        if (count == -1) {
+          throw new IOException("Cache entry cut short");
+        }
+        read += count;
+      }
+      return bytes;
+    }
+
+    public boolean isFresh(CacheControl requestControl, long now) {
+      if (requestControl.noCache || new CacheControl(getHeader(headers, "Cache-Control")).noCache) {
+        return false;
+      }
+
+      // How old the response was when we got it, by its Date or Age.
+      long date = parseDate(getHeader(headers, "Date"), responseMillis);
+      long initialAge = Math.max(0, responseMillis - date);
+      String age = getHeader(headers, "Age");
+      if (age != null) {
+        try {
+          initialAge = Math.max(initialAge, Long.parseLong(age.trim()) * 1000);
+        } catch (NumberFormatException e) {
+          // Go by the Date alone.
+        }
+      }
+
+      long currentAge = initialAge + Math.max(0, now - responseMillis);
+      if (requestControl.maxAgeSeconds >= 0 && currentAge > requestControl.maxAgeSeconds * 1000) {
+        return false;
+      }
+      return currentAge < getFreshnessLifetime(headers, responseMillis);
+    }
+  }
+
+  /**
+   * A response served from an entry. Its body is the entry's file, not
+   * wrapped, so that it can be copied out as a file.
+   */
+  private static class CachedResponse extends HttpResponseMessage {
+    public CachedResponse(URL url, List<Map.Entry<String, String>> headers, FileInputStream body) {
+      super(Method.GET.toString(), url);
+      this.headers.addAll(headers);
+      this.body = body;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return 200;
+    }
+
+    @Override
+    public void dump(Map<String, Object> into) throws IOException {
+      super.dump(into);
+      StringBuilder response = new StringBuilder("HTTP/1.1 200 OK").append(EOL);
+      for (Map.Entry<String, String> header : headers) {
+        response.append(header.getKey()).append(": ").append(header.getValue()).append(EOL);
+      }
+      response.append(EOL);
+      into.put(RESPONSE, response.toString());
+    }
+  }
+
+  /**
+   * A response from the server, whose body is stored as it's read.
+   */
+  private class StoringResponse extends HttpResponseMessage {
+    private final HttpResponseMessage in;
+    private final String primaryKey;
+    private final List<Parameter> requestHeaders;
+    private final long responseMillis;
+
+    public StoringResponse(HttpResponseMessage in, String primaryKey,
+        List<Parameter> requestHeaders) {
+      super(in.method, in.url);
+      this.headers.addAll(in.headers);
+      this.in = in;
+      this.primaryKey = primaryKey;
+      this.requestHeaders = requestHeaders;
+      this.responseMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    protected InputStream openBody() throws IOException {
+      InputStream body = in.getBody();
+      if (body == null) {
+        return null;
+      }
+
+      List<String> varyNames = parseVary(getHeader("Vary"));
+      String name = entryName(primaryKey, varyNames, requestHeaders);
+      File part = null;
+      try {
+        part = newPart();
+        FileOutputStream partOut = startEntry(part, url.toString(), responseMillis, headers);
+        return new StoringInputStream(body, part, partOut, varyNames, name);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Not caching " + url, e);
+        if (part != null) {
+          part.delete();
+        }
+        return body;
+      }
+    }
+
+    @Override
+    public int getStatusCode() throws IOException {
+      return in.getStatusCode();
+    }
+
+    @Override
+    public void dump(Map<String, Object> into) throws IOException {
+      in.dump(into);
+    }
+
+    /**
+     * Copies the body into the entry as it's read, and puts the entry in
+     * place at the end of the body. If the body isn't read to the end, or
+     * writing the entry fails, the entry is dropped.
+     */
+    private class StoringInputStream extends FilterInputStream {
+      private final File part;
+      private final List<String> varyNames;
+      private final String name;
+      /** Null once the entry has been stored or dropped. */
+      private OutputStream partOut;
+
+      public StoringInputStream(InputStream body, File part, OutputStream partOut,
+          List<String> varyNames, String name) {
+        super(body);
+        this.part = part;
+        this.partOut = partOut;
+        this.varyNames = varyNames;
+        this.name = name;
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+          store();
+        } else if (partOut != null) {
+          try {
+            partOut.write(b);
+          } catch (IOException e) {
+            drop(e);
+          }
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count == -1) {
+          store();
+        } else if (partOut != null) {
+          try {
+            partOut.write(b, off, count);
+          } catch (IOException e) {
+            drop(e);
+          }
+        }
+        return count;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        drop(null);
+        return super.skip(n);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          drop(null);
+        }
+      }
+
+      private void store() {
+        if (partOut == null) {
+          return;
+        }
+
+        try {
+          partOut.close();
+          partOut = null;
+          writeVary(primaryKey, varyNames);
+          rename(part, new File(dir, name));
+          logger.log(Level.INFO, "Cached " + url);
+        } catch (IOException e) {
+          drop(e);
+          return;
+        }
+        evict();
+      }
+
+      private void drop(IOException e) {
+        if (e != null) {
+          logger.log(Level.WARNING, "Not caching " + url, e);
+        }
+        if (partOut != null) {
+          try {
+            partOut.close();
+          } catch (IOException closeException) {
+            // It's going anyway.
+          }
+          partOut = null;
+        }
+        part.delete();
+      }
+    }
+  }
+}
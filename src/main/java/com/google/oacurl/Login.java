@@ -20,35 +20,41 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.net.URL;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.oauth.OAuthAccessor;
 import net.oauth.OAuthConsumer;
 import net.oauth.OAuthProblemException;
-import net.oauth.OAuthServiceProvider;
 import net.oauth.client.OAuthClient;
 import net.oauth.client.httpclient4.HttpClient4;
+import net.oauth.client.httpclient4.HttpClientPool;
 
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.ParseException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
 
 import com.google.oacurl.LoginCallbackServer.TokenStatus;
 import com.google.oacurl.dao.AccessorDao;
 import com.google.oacurl.dao.ConsumerDao;
+import com.google.oacurl.dao.LoginDao;
 import com.google.oacurl.dao.ServiceProviderDao;
 import com.google.oacurl.engine.OAuthEngine;
-import com.google.oacurl.engine.V1OAuthEngine;
-import com.google.oacurl.engine.V2OAuthEngine;
-import com.google.oacurl.engine.WrapOAuthEngine;
 import com.google.oacurl.options.LoginOptions;
 import com.google.oacurl.options.OAuthVersion;
 import com.google.oacurl.util.LoggingConfig;
 import com.google.oacurl.util.OAuthUtil;
 import com.google.oacurl.util.PropertiesProvider;
+import com.google.oacurl.util.WireLog;
 
 /**
  * Main class for doing the initial OAuth dance to get an access token and
@@ -79,37 +85,25 @@ public class Login {
     }
 
     LoggingConfig.init(options.isVerbose());
-    if (options.isWirelogVerbose()) {
-      LoggingConfig.enableWireLog();
-    }
+    LoggingConfig.enableWireLog(options.isWirelogVerbose(), options);
 
-    ServiceProviderDao serviceProviderDao = new ServiceProviderDao();
-    ConsumerDao consumerDao = new ConsumerDao(options);
     AccessorDao accessorDao = new AccessorDao();
 
-    String serviceProviderFileName = options.getServiceProviderFileName();
-    if (serviceProviderFileName == null) {
-      if (options.isBuzz()) {
-        // Buzz has its own provider because it has a custom authorization URL
-        serviceProviderFileName = "BUZZ";
-      } else if (options.getVersion() == OAuthVersion.V2) {
-        serviceProviderFileName = "GOOGLE_V2";
-      } else {
-        serviceProviderFileName = "GOOGLE";
-      }
-    }
-
-    // We have a wee library of service provider properties files bundled into
-    // the resources, so we set up the PropertiesProvider to search for them
-    // if the file cannot be found.
-    OAuthServiceProvider serviceProvider = serviceProviderDao.loadServiceProvider(
-        new PropertiesProvider(serviceProviderFileName,
-            ServiceProviderDao.class, "services/").get());
-    OAuthConsumer consumer = consumerDao.loadConsumer(
-        new PropertiesProvider(options.getConsumerFileName()).get(), serviceProvider);
+    OAuthConsumer consumer = loadConsumer(options);
     OAuthAccessor accessor = accessorDao.newAccessor(consumer);
 
-    OAuthClient client = new OAuthClient(new HttpClient4());
+    // Like HttpClient 4's own default client, but on connections the wire
+    // log can see.
+    DefaultHttpClient defaultClient = new DefaultHttpClient();
+    final HttpClient httpClient = new DefaultHttpClient(
+        WireLog.newConnectionManager(defaultClient.getParams(),
+            defaultClient.getConnectionManager().getSchemeRegistry()),
+        defaultClient.getParams());
+    OAuthClient client = new OAuthClient(new HttpClient4(new HttpClientPool() {
+      public HttpClient getHttpClient(URL server) {
+        return httpClient;
+      }
+    }));
 
     LoginCallbackServer callbackServer = null;
 
@@ -130,25 +124,14 @@ public class Login {
         callbackUrl = null;
       }
 
-      OAuthEngine engine;
-      switch (options.getVersion()) {
-      case V1:
-        engine = new V1OAuthEngine();
-        break;
-      case V2:
-        engine = new V2OAuthEngine();
-        break;
-      case WRAP:
-        engine = new WrapOAuthEngine();
-        break;
-      default:
-        throw new IllegalArgumentException("Unknown version: " + options.getVersion());
-      }
+      OAuthEngine engine = Fetch.newEngine(options.getVersion());
 
       do {
         String authorizationUrl = engine.getAuthorizationUrl(client, accessor, options, callbackUrl);
 
+        Future<String> verifierFuture = null;
         if (!options.isNoServer()) {
+          verifierFuture = callbackServer.expectVerifier(accessor.requestToken);
           callbackServer.setAuthorizationUrl(authorizationUrl);
         }
 
@@ -181,11 +164,24 @@ public class Login {
             verifier = line.trim();
           }
         } else {
-          verifier = callbackServer.waitForVerifier(accessor, -1);
-          if (verifier == null) {
+          try {
+            verifier = verifierFuture.get(LoginCallbackServer.ABANDON_MILLIS,
+                TimeUnit.MILLISECONDS);
+          } catch (TimeoutException e) {
+            verifierFuture.cancel(false);
+            System.err.println("Gave up waiting for verifier after "
+                + LoginCallbackServer.ABANDON_MILLIS / 60000 + " minutes");
+            System.exit(-1);
+            return;
+          } catch (InterruptedException e) {
             System.err.println("Wait for verifier interrupted");
             System.exit(-1);
-          }        
+            return;
+          } catch (CancellationException e) {
+            System.err.println("Gave up waiting for verifier");
+            System.exit(-1);
+            return;
+          }
         }
         logger.log(Level.INFO, "Verification token received: " + verifier);
 
@@ -196,11 +192,7 @@ public class Login {
             callbackServer.setTokenStatus(TokenStatus.VALID);
           }
 
-          Properties loginProperties = new Properties();
-          accessorDao.saveAccessor(accessor, loginProperties);
-          consumerDao.saveConsumer(consumer, loginProperties);
-          loginProperties.put("oauthVersion", options.getVersion().toString());
-          new PropertiesProvider(options.getLoginFileName()).overwrite(loginProperties);
+          new LoginDao(options).save(newLoginProperties(accessor, options.getVersion()));
         } else {
           if (callbackServer != null) {
             callbackServer.setTokenStatus(TokenStatus.INVALID);
@@ -216,6 +208,63 @@ public class Login {
     }
   }
 
+  /**
+   * Loads the consumer named in the options, for the service provider named
+   * there.
+   */
+  static OAuthConsumer loadConsumer(LoginOptions options) throws IOException {
+    Properties serviceProviderProperties = loadServiceProviderProperties(options);
+
+    // The consumer file has the final say, but the service provider can set
+    // defaults, such as a rate limit.
+    Properties consumerProperties = new Properties();
+    consumerProperties.putAll(serviceProviderProperties);
+    consumerProperties.putAll(new PropertiesProvider(options.getConsumerFileName()).get());
+
+    return new ConsumerDao(options).loadConsumer(consumerProperties,
+        new ServiceProviderDao().loadServiceProvider(serviceProviderProperties));
+  }
+
+  /**
+   * Loads the service provider named in the options, or else the usual one
+   * for the options' OAuth version.
+   */
+  private static Properties loadServiceProviderProperties(LoginOptions options)
+      throws IOException {
+    String serviceProviderFileName = options.getServiceProviderFileName();
+    if (serviceProviderFileName == null) {
+      if (options.isBuzz()) {
+        // Buzz has its own provider because it has a custom authorization URL
+        serviceProviderFileName = "BUZZ";
+      } else if (options.getVersion() == OAuthVersion.V2) {
+        serviceProviderFileName = "GOOGLE_V2";
+      } else {
+        serviceProviderFileName = "GOOGLE";
+      }
+    }
+
+    // We have a wee library of service provider properties files bundled into
+    // the resources, so we set up the PropertiesProvider to search for them
+    // if the file cannot be found.
+    return new PropertiesProvider(serviceProviderFileName,
+        ServiceProviderDao.class, "services/").get();
+  }
+
+  /**
+   * Returns the login properties to save for an accessor that has its access
+   * token, for {@link Fetch} to load.
+   */
+  static Properties newLoginProperties(OAuthAccessor accessor, OAuthVersion version) {
+    Properties loginProperties = new Properties();
+    new AccessorDao().saveAccessor(accessor, loginProperties);
+    new ConsumerDao().saveConsumer(accessor.consumer, loginProperties);
+    // Kept so that Fetch knows where to refresh OAuth 2 tokens.
+    new ServiceProviderDao().saveServiceProvider(accessor.consumer.serviceProvider,
+        loginProperties);
+    loginProperties.put("oauthVersion", version.toString());
+    return loginProperties;
+  }
+
   private static void launchBrowser(LoginOptions options,
       String authorizationUrl) {
     logger.log(Level.INFO, "Redirecting to URL: " + authorizationUrl);
@@ -0,0 +1,411 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthProblemException;
+import net.oauth.client.OAuthClient;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.thread.QueuedThreadPool;
+
+import com.google.oacurl.dao.CredentialStore;
+import com.google.oacurl.engine.OAuthEngine;
+import com.google.oacurl.options.LoginBrokerOptions;
+import com.google.oacurl.options.OAuthVersion;
+import com.google.oacurl.util.LatencyHistogram;
+import com.google.oacurl.util.LoggingConfig;
+
+/**
+ * Main class for a long-running server that runs the OAuth dance for any
+ * number of users at once, saving each one's access token as a profile in
+ * the {@link CredentialStore}.
+ * <p>
+ * A user opens {@code /start?profile=NAME} (or the form at {@code /}), is
+ * redirected to authorize, and lands back on the callback, which trades the
+ * verifier for an access token, saves it and says so. A profile that
+ * already exists is only replaced if the broker was started with
+ * --overwrite; otherwise the login is refused. Each login in flight
+ * is kept under its request token (for OAuth 2, its state), so they don't
+ * get in each other's way. Browser requests are handled by a bounded pool of
+ * threads, and token requests share the usual connection pool.
+ * <p>
+ * Progress, including how long token exchanges take, is reported on stderr
+ * and at {@code /stats}.
+ */
+public class LoginBroker {
+  private static final String INDEX_PATH = "/";
+  private static final String START_PATH = "/start";
+  private static final String CALLBACK_PATH = "/OAuthCallback";
+  private static final String STATS_PATH = "/stats";
+
+  private static final String[] PERCENTILES = { "50", "90", "99" };
+
+  private static Logger logger = Logger.getLogger(LoginBroker.class.getName());
+
+  private final LoginBrokerOptions options;
+  private final OAuthConsumer consumer;
+  private final OAuthEngine engine;
+  private final OAuthClient client;
+  private final CredentialStore store;
+
+  private final ConcurrentMap<String, Flow> flows = new ConcurrentHashMap<String, Flow>();
+
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong saved = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  // Guarded by itself.
+  private final LatencyHistogram exchangeLatency = new LatencyHistogram();
+
+  private Server server;
+  private String callbackUrl;
+
+  public LoginBroker(LoginBrokerOptions options) throws IOException {
+    this.options = options;
+    this.consumer = Login.loadConsumer(options);
+    this.engine = Fetch.newEngine(options.getVersion());
+    this.client = Fetch.newClient(options.getPoolOptions());
+    this.store = CredentialStore.forFile(new File(options.getProfileStoreFileName()));
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoginBrokerOptions options = new LoginBrokerOptions();
+    CommandLine line;
+    try {
+      line = options.parse(args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+      return;
+    }
+
+    if (options.isHelp() || line.getArgs().length != 0) {
+      new HelpFormatter().printHelp(" ", options.getOptions());
+      System.exit(options.isHelp() ? 0 : -1);
+    }
+
+    if (options.isInsecure()) {
+      SSLSocketFactory.getSocketFactory().setHostnameVerifier(new AllowAllHostnameVerifier());
+    }
+
+    LoggingConfig.init(options.isVerbose());
+    LoggingConfig.enableWireLog(options.isWirelogVerbose(), options);
+
+    LoginBroker broker = new LoginBroker(options);
+    broker.start();
+    System.err.println("Serving logins at http://" + options.getHost() + ":"
+        + options.getPort() + INDEX_PATH + " into " + broker.store.getFile());
+
+    long reportMillis = options.getReportSeconds() * 1000L;
+    long lastSaved = 0;
+    while (true) {
+      Thread.sleep(reportMillis > 0 ? reportMillis : Long.MAX_VALUE);
+
+      // Only report when something has happened, so an idle broker is quiet.
+      long nowSaved = broker.saved.get();
+      if (nowSaved != lastSaved || !broker.flows.isEmpty()) {
+        broker.printStats(System.err);
+        lastSaved = nowSaved;
+      }
+    }
+  }
+
+  public void start() throws Exception {
+    if (server != null) {
+      throw new IllegalStateException("Broker is already started");
+    }
+
+    server = new Server(options.getPort());
+    for (Connector c : server.getConnectors()) {
+      c.setHost(options.getHost());
+    }
+
+    // One more thread than requests, for the connector's selector.
+    QueuedThreadPool threadPool = new QueuedThreadPool(options.getThreads() + 1);
+    threadPool.setName("LoginBroker");
+    server.setThreadPool(threadPool);
+
+    server.addHandler(new BrokerHandler());
+    server.start();
+
+    callbackUrl = (options.getCallback() != null)
+        ? options.getCallback()
+        : "http://" + options.getHost() + ":" + options.getPort() + CALLBACK_PATH;
+  }
+
+  public void stop() throws Exception {
+    if (server != null) {
+      server.stop();
+      server = null;
+    }
+  }
+
+  /**
+   * Starts a login that will be saved as the given profile.
+   *
+   * @return the URL to send the user to.
+   */
+  private String startFlow(String profile) throws Exception {
+    removeAbandoned();
+
+    OAuthAccessor accessor = new OAuthAccessor(consumer);
+    String authorizationUrl = engine.getAuthorizationUrl(client, accessor, options, callbackUrl);
+
+    flows.put(accessor.requestToken, new Flow(profile, accessor));
+    started.incrementAndGet();
+    logger.log(Level.INFO, "Started login for " + profile);
+    return authorizationUrl;
+  }
+
+  /**
+   * Trades the verifier for an access token and saves it.
+   *
+   * @return whether the login was saved.
+   * @throws ProfileExistsException if the profile was saved by someone else
+   *     since the login started, and we may not overwrite it.
+   */
+  private boolean finishFlow(Flow flow, String verifier) throws Exception {
+    long exchangeStartNanos = System.nanoTime();
+    boolean success;
+    try {
+      success = engine.getAccessToken(flow.accessor, client, callbackUrl, verifier);
+    } finally {
+      long micros = (System.nanoTime() - exchangeStartNanos) / 1000;
+      synchronized (exchangeLatency) {
+        exchangeLatency.record(Math.min(micros, LatencyHistogram.MAX_VALUE));
+      }
+    }
+
+    if (!success) {
+      return false;
+    }
+
+    Properties login = Login.newLoginProperties(flow.accessor, options.getVersion());
+    if (options.isOverwrite()) {
+      store.put(flow.profile, login);
+    } else if (!store.add(flow.profile, login)) {
+      throw new ProfileExistsException();
+    }
+    logger.log(Level.INFO, "Saved login for " + flow.profile);
+    return true;
+  }
+
+  /**
+   * Forgets logins that were started but never came back.
+   */
+  private void removeAbandoned() {
+    long cutoff = System.currentTimeMillis() - LoginCallbackServer.ABANDON_MILLIS;
+    for (Iterator<Flow> i = flows.values().iterator(); i.hasNext(); ) {
+      if (i.next().startedMillis < cutoff) {
+        i.remove();
+        failed.incrementAndGet();
+      }
+    }
+  }
+
+  public void printStats(PrintStream out) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    out.printf("Logins:     %d started, %d saved, %d failed, %d waiting; %.2f saved/s%n",
+        started.get(), saved.get(), failed.get(), flows.size(), saved.get() / seconds);
+
+    synchronized (exchangeLatency) {
+      if (exchangeLatency.getTotalCount() > 0) {
+        StringBuilder percentiles = new StringBuilder();
+        for (String percentile : PERCENTILES) {
+          percentiles.append(String.format(", p%s %.3f ms", percentile,
+              exchangeLatency.getValueAtPercentile(Double.parseDouble(percentile)) / 1000.0));
+        }
+        out.printf("Exchange:   mean %.3f ms%s, max %.3f ms%n",
+            exchangeLatency.getMean() / 1000.0, percentiles, exchangeLatency.getMax() / 1000.0);
+      }
+    }
+  }
+
+  private static String escapeHtml(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+        .replace("\"", "&quot;").replace("'", "&#39;");
+  }
+
+  /**
+   * One login between being started and coming back.
+   */
+  private static class Flow {
+    private final String profile;
+    private final OAuthAccessor accessor;
+    private final long startedMillis = System.currentTimeMillis();
+
+    public Flow(String profile, OAuthAccessor accessor) {
+      this.profile = profile;
+      this.accessor = accessor;
+    }
+  }
+
+  /**
+   * Thrown when a login would replace an existing profile without
+   * --overwrite.
+   */
+  private static class ProfileExistsException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Jetty handler for all of the broker's pages.
+   */
+  private class BrokerHandler extends AbstractHandler {
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch)
+        throws IOException, ServletException {
+      if (INDEX_PATH.equals(target)) {
+        writePage(response, HttpServletResponse.SC_OK, "OACurl Login Broker",
+            "<form action='" + START_PATH + "'>Profile name: <input name='profile'>"
+            + " <input type='submit' value='Log in'></form>");
+      } else if (START_PATH.equals(target)) {
+        handleStart(request, response);
+      } else if (CALLBACK_PATH.equals(target)) {
+        handleCallback(request, response);
+      } else if (STATS_PATH.equals(target)) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain");
+        PrintStream out = new PrintStream(response.getOutputStream(), false, "UTF-8");
+        printStats(out);
+        out.flush();
+      } else {
+        return;
+      }
+
+      response.flushBuffer();
+      ((Request) request).setHandled(true);
+    }
+
+    private void handleStart(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      String profile = request.getParameter("profile");
+      if (profile == null || profile.trim().length() == 0) {
+        writePage(response, HttpServletResponse.SC_BAD_REQUEST, "No profile",
+            "Say which profile to save the login as, with ?profile=NAME.");
+        return;
+      }
+
+      profile = profile.trim();
+      if (!options.isOverwrite() && store.get(profile) != null) {
+        writePage(response, HttpServletResponse.SC_CONFLICT, "Profile exists",
+            "There's already a profile <b>" + escapeHtml(profile) + "</b>, and this broker"
+            + " doesn't replace profiles. Pick another name.");
+        return;
+      }
+
+      try {
+        response.sendRedirect(startFlow(profile));
+      } catch (OAuthProblemException e) {
+        failed.incrementAndGet();
+        writePage(response, HttpServletResponse.SC_BAD_GATEWAY, "Login failed",
+            "Could not start the login: " + escapeHtml(e.getProblem()));
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        logger.log(Level.WARNING, "Could not start login for " + profile, e);
+        writePage(response, HttpServletResponse.SC_BAD_GATEWAY, "Login failed",
+            "Could not start the login: " + escapeHtml(String.valueOf(e.getMessage())));
+      }
+    }
+
+    private void handleCallback(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      OAuthVersion version = options.getVersion();
+      String requestToken = request.getParameter(
+          LoginCallbackServer.getRequestTokenParamName(version));
+      String verifier = request.getParameter(LoginCallbackServer.getVerifierParamName(version));
+
+      Flow flow = (requestToken != null) ? flows.remove(requestToken) : null;
+      if (flow == null) {
+        writePage(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown login",
+            "This login has already finished, or was never started here.");
+        return;
+      }
+
+      if (verifier == null) {
+        failed.incrementAndGet();
+        writePage(response, HttpServletResponse.SC_OK, "Login not authorized",
+            "No verifier came back for profile <b>" + escapeHtml(flow.profile)
+            + "</b>, so nothing was saved.");
+        return;
+      }
+
+      try {
+        if (finishFlow(flow, verifier)) {
+          saved.incrementAndGet();
+          writePage(response, HttpServletResponse.SC_OK, "Logged in",
+              "Saved the login as profile <b>" + escapeHtml(flow.profile) + "</b>.");
+        } else {
+          failed.incrementAndGet();
+          writePage(response, HttpServletResponse.SC_BAD_GATEWAY, "Login failed",
+              "No access token came back for profile <b>" + escapeHtml(flow.profile) + "</b>.");
+        }
+      } catch (ProfileExistsException e) {
+        failed.incrementAndGet();
+        writePage(response, HttpServletResponse.SC_CONFLICT, "Profile exists",
+            "Profile <b>" + escapeHtml(flow.profile) + "</b> was saved by something else"
+            + " while this login was running, so it wasn't replaced.");
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        logger.log(Level.WARNING, "Could not finish login for " + flow.profile, e);
+        writePage(response, HttpServletResponse.SC_BAD_GATEWAY, "Login failed",
+            "Could not get an access token for profile <b>" + escapeHtml(flow.profile)
+            + "</b>: " + escapeHtml(String.valueOf(e.getMessage())));
+      }
+    }
+
+    private void writePage(HttpServletResponse response, int status, String title, String body)
+        throws IOException {
+      response.setStatus(status);
+      response.setContentType("text/html; charset=UTF-8");
+
+      PrintWriter doc = response.getWriter();
+      doc.println("<html>");
+      doc.println("<head><title>" + title + "</title></head>");
+      doc.println("<body>");
+      doc.println("<h1>" + title + "</h1>");
+      doc.println("<p>" + body + "</p>");
+      doc.println("</body>");
+      doc.println("</html>");
+      doc.flush();
+    }
+  }
+}
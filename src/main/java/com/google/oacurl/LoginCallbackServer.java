@@ -18,8 +18,16 @@ package com.google.oacurl;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -34,11 +42,18 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 
 import com.google.oacurl.options.LoginOptions;
+import com.google.oacurl.options.OAuthVersion;
 
 /**
  * Class that runs a Jetty server on a free port, waiting for OAuth to redirect
  * to it with the one-time authorization token.
  * <p>
+ * Each login registers for its verifier with {@link #expectVerifier} before
+ * sending the user off to authorize, and gets a {@link Future} that the
+ * callback completes the moment it arrives. Logins in flight don't share a
+ * lock, and nothing polls. Waits, and verifiers nobody collects, are given
+ * up on after {@link #ABANDON_MILLIS}.
+ * <p>
  * Initially derived from the oauth-example-desktop by John Kristian.
  *
  * @author phopkins@google.com
@@ -53,6 +68,9 @@ public class LoginCallbackServer {
   private static final String DEMO_PATH = "/";
   private static final String CALLBACK_PATH = "/OAuthCallback";
 
+  /** How long a verifier, or a wait for one, is kept before being dropped. */
+  public static final long ABANDON_MILLIS = 30 * 60 * 1000;
+
   private final LoginOptions options;
 
   private int port;
@@ -62,7 +80,8 @@ public class LoginCallbackServer {
   private TokenStatus tokenStatus = TokenStatus.MISSING;
   private String authorizationUrl;
 
-  private Map<String, String> verifierMap = new HashMap<String, String>();
+  private final ConcurrentMap<String, VerifierFuture> verifiers =
+      new ConcurrentHashMap<String, VerifierFuture>();
 
   public LoginCallbackServer(LoginOptions options) {
     this.options = options;
@@ -133,39 +152,150 @@ public class LoginCallbackServer {
     }
   }
 
+  /**
+   * Name of the callback parameter with the verifier in it.
+   */
+  static String getVerifierParamName(OAuthVersion version) {
+    switch (version) {
+    case V1:
+      return OAuth.OAUTH_VERIFIER;
+    case V2:
+      return "code";
+    case WRAP:
+      return "wrap_verification_code";
+    default:
+      throw new AssertionError("Unknown version: " + version);
+    }
+  }
+
+  /**
+   * Name of the callback parameter with the request token (or, for OAuth 2,
+   * the state) in it, which says which login the verifier is for.
+   */
+  static String getRequestTokenParamName(OAuthVersion version) {
+    return (version == OAuthVersion.V2) ? "state" : OAuth.OAUTH_TOKEN;
+  }
+
+  /**
+   * Registers interest in the verifier for a request token. Call it before
+   * sending the user to authorize, so that the callback can't beat it.
+   *
+   * @return A future for the verifier. Cancelling it stops the wait and
+   *     forgets the request token. Once it's older than
+   *     {@link #ABANDON_MILLIS}, the next verifier expected or received
+   *     cancels it, so wait on it with a timeout.
+   */
+  public Future<String> expectVerifier(String requestToken) {
+    removeAbandoned();
+    return getVerifierFuture(requestToken);
+  }
+
   /**
    * Call that blocks until the OAuth provider redirects back here with the
    * verifier token.
    *
    * @param accessor Accessor whose request token we're waiting for a verifier
    *     token for.
-   * @param waitMillis Amount of time we're willing to wait, it millis.
+   * @param waitMillis Amount of time we're willing to wait, it millis, or -1
+   *     to wait forever.
    * @return The verifier token, or null if there was a timeout.
    */
   public String waitForVerifier(OAuthAccessor accessor, long waitMillis) {
-    long startTime = System.currentTimeMillis();
-
-    synchronized (verifierMap) {
-      while (!verifierMap.containsKey(accessor.requestToken)) {
-        try {
-          verifierMap.wait(3000);
-        } catch (InterruptedException e) {
-          return null;
-        }
+    Future<String> future = expectVerifier(accessor.requestToken);
+    try {
+      if (waitMillis == -1) {
+        return future.get();
+      } else {
+        return future.get(waitMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      return null;
+    } catch (TimeoutException e) {
+      return null;
+    } catch (ExecutionException e) {
+      throw new AssertionError(e);
+    } finally {
+      future.cancel(false);
+    }
+  }
 
-        if (waitMillis != -1 && System.currentTimeMillis() > startTime + waitMillis) {
-          return null;
-        }
+  private VerifierFuture getVerifierFuture(String requestToken) {
+    VerifierFuture future = verifiers.get(requestToken);
+    if (future == null) {
+      VerifierFuture newFuture = new VerifierFuture(requestToken);
+      future = verifiers.putIfAbsent(requestToken, newFuture);
+      if (future == null) {
+        future = newFuture;
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Drops waits for verifiers, and verifiers nobody collected, that have been
+   * around too long.
+   */
+  private void removeAbandoned() {
+    long cutoff = System.currentTimeMillis() - ABANDON_MILLIS;
+    for (Iterator<VerifierFuture> i = verifiers.values().iterator(); i.hasNext(); ) {
+      VerifierFuture future = i.next();
+      if (future.changedMillis < cutoff) {
+        i.remove();
+        future.cancel(false);
       }
+    }
+  }
 
-      return verifierMap.remove(accessor.requestToken);
+  /**
+   * A verifier still to come, or that has come and not yet been collected.
+   * It takes itself out of the map once it's collected or cancelled.
+   */
+  private class VerifierFuture extends FutureTask<String> {
+    private final String requestToken;
+    /** When it was registered, or when the verifier came. */
+    private volatile long changedMillis = System.currentTimeMillis();
+
+    public VerifierFuture(String requestToken) {
+      super(new Callable<String>() {
+        public String call() {
+          throw new IllegalStateException("Verifiers only come from callbacks");
+        }
+      });
+      this.requestToken = requestToken;
+    }
+
+    public void setVerifier(String verifier) {
+      set(verifier);
+    }
+
+    @Override
+    public String get() throws InterruptedException, ExecutionException {
+      String verifier = super.get();
+      verifiers.remove(requestToken, this);
+      return verifier;
+    }
+
+    @Override
+    public String get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      String verifier = super.get(timeout, unit);
+      verifiers.remove(requestToken, this);
+      return verifier;
+    }
+
+    @Override
+    protected void done() {
+      changedMillis = System.currentTimeMillis();
+      if (isCancelled()) {
+        verifiers.remove(requestToken, this);
+      }
     }
   }
 
   /**
    * Jetty handler that takes the verifier token passed over from the OAuth
-   * provider and stashes it where
-   * {@link LoginCallbackServer#waitForVerifier} will find it.
+   * provider and completes the future that
+   * {@link LoginCallbackServer#expectVerifier} handed out for it.
    */
   public class CallbackHandler extends AbstractHandler {
     public void handle(String target, HttpServletRequest request,
@@ -175,35 +305,17 @@ public class LoginCallbackServer {
         return;
       }
 
-      String requestTokenName;
-      String verifierName;
-      switch (options.getVersion()) {
-      case V1:
-        verifierName = OAuth.OAUTH_VERIFIER;
-        requestTokenName = OAuth.OAUTH_TOKEN;
-        break;
-      case V2:
-        verifierName = "code";
-        requestTokenName = "state";
-        break;
-      case WRAP:
-        verifierName = "wrap_verification_code";
-        requestTokenName = OAuth.OAUTH_TOKEN;
-        break;
-      default:
-        throw new AssertionError("Unknown version: " + options.getVersion());
-      }
-
-      String verifier = request.getParameter(verifierName);
-      String requestToken = request.getParameter(requestTokenName);
+      String verifier = request.getParameter(getVerifierParamName(options.getVersion()));
+      String requestToken = request.getParameter(
+          getRequestTokenParamName(options.getVersion()));
 
-      if (verifier != null) {
+      if (verifier != null && requestToken != null) {
         writeLandingHtml(response);
-  
-        synchronized (verifierMap) {
-          verifierMap.put(requestToken, verifier);
-          verifierMap.notifyAll();
-        }
+
+        // Usually the future is already waiting, but if nobody has asked
+        // yet, this keeps the verifier for them.
+        removeAbandoned();
+        getVerifierFuture(requestToken).setVerifier(verifier);
       } else {
         writeErrorHtml(request, response);
       }
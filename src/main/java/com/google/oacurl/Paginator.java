@@ -0,0 +1,404 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.oauth.OAuth.Parameter;
+import net.oauth.http.HttpResponseMessage;
+
+import com.google.oacurl.options.FetchOptions;
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.StreamCopier;
+
+/**
+ * Fetches every page of a paged feed, writing the pages' bodies one after
+ * another as a single stream.
+ * <p>
+ * The next page is found from, in order of preference:
+ * <ul>
+ *   <li>a Link header with rel="next";
+ *   <li>an Atom &lt;link rel="next" href="..."/&gt; in the body;
+ *   <li>a JSON "nextLink" URL or "nextPageToken" in the body. A token is sent
+ *       back as the pageToken parameter of the first page's URL.
+ * </ul>
+ * The body is searched as it's written out, and the request for the next
+ * page goes out as soon as its URL is known, so that its response is on the
+ * way while the rest of this page is still being written. Feeds put their
+ * next links near the top, so most of each page's latency is hidden. (The
+ * OAuth library reads the first kilobyte of a body before handing it over,
+ * so tiny pages don't overlap.) Only one page is fetched ahead, so memory use
+ * doesn't grow with the feed.
+ */
+public class Paginator {
+  /** How far back to keep searching, for a cursor split between reads. */
+  private static final int OVERLAP = 2048;
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+  /** How many page URLs to remember, to notice links that go round in a loop. */
+  private static final int MAX_REMEMBERED_URLS = 10000;
+
+  private static final Pattern LINK_HEADER = Pattern.compile("<([^>]*)>([^,]*)");
+  private static final Pattern LINK_REL_NEXT =
+      Pattern.compile(";\\s*rel\\s*=\\s*\"?([^\";]*\\s)?next[\\s\"]*(;|$)");
+  private static final Pattern ATOM_LINK =
+      Pattern.compile("<(?:\\w+:)?link\\b[^>]*\\brel\\s*=\\s*[\"']next[\"'][^>]*>");
+  private static final Pattern ATOM_HREF = Pattern.compile("\\bhref\\s*=\\s*[\"']([^\"']*)[\"']");
+  private static final Pattern JSON_NEXT_LINK =
+      Pattern.compile("\"nextLink\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+  private static final Pattern JSON_PAGE_TOKEN =
+      Pattern.compile("\"nextPageToken\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+  private static final Pattern PAGE_TOKEN_PARAM = Pattern.compile("([?&])pageToken=[^&]*&?");
+
+  private static Logger logger = Logger.getLogger(Paginator.class.getName());
+
+  private final Fetch fetch;
+  private final String firstUrl;
+  private final List<Parameter> headers;
+  private final RetryPolicy retryPolicy;
+  private final int maxPages;
+  private final long maxBytes;
+  private final OutputStream out;
+
+  /** The most recent pages fetched, oldest first. */
+  private final Map<String, Boolean> fetched = new LinkedHashMap<String, Boolean>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > MAX_REMEMBERED_URLS;
+    }
+  };
+
+  public Paginator(Fetch fetch, FetchOptions options, String url, OutputStream out) {
+    if (options.getMethod() != Method.GET) {
+      throw new IllegalArgumentException("Only GETs can be paginated");
+    }
+
+    this.fetch = fetch;
+    this.firstUrl = url;
+    this.headers = options.getHeaders();
+    this.retryPolicy = options.getRetryPolicy();
+    this.maxPages = options.getMaxPages();
+    this.maxBytes = options.getMaxBytes();
+    this.out = out;
+  }
+
+  /**
+   * Fetches pages until there are no more or a limit is reached.
+   *
+   * @throws IOException if a page couldn't be fetched, or came back with an
+   *     error. Its body is written out first, like any other page's.
+   */
+  public void run() throws IOException {
+    AsyncFetch async = new AsyncFetch(fetch, 1);
+    try {
+      run(async);
+    } finally {
+      async.shutdownNow();
+    }
+  }
+
+  private void run(AsyncFetch async) throws IOException {
+    long startNanos = System.nanoTime();
+    long bytes = 0;
+    int pages = 0;
+
+    String url = firstUrl;
+    AsyncFetch.Call call = submit(async, url);
+    while (call != null && bytes < maxBytes) {
+      HttpResponseMessage response = getResponse(call);
+      pages++;
+
+      int status = response.getStatusCode();
+      boolean ok = status >= 200 && status < 300;
+      boolean more = ok && pages < maxPages && bytes < maxBytes;
+
+      // The next page may be known before we read a byte of this one.
+      String next = more ? findNextInHeaders(url, response) : null;
+      AsyncFetch.Call nextCall = null;
+      if (next != null && !fetched.containsKey(next)) {
+        nextCall = submit(async, next);
+      }
+
+      NextPageScanner scanner = (more && next == null) ? new NextPageScanner(async, url) : null;
+      InputStream body = response.getBody();
+      if (body != null) {
+        try {
+          bytes += copy(body, bytes, scanner);
+        } finally {
+          body.close();
+        }
+      }
+      out.flush();
+
+      if (!ok) {
+        throw new IOException("Stopped at page " + pages + ": HTTP " + status + " from " + url);
+      }
+
+      if (scanner != null) {
+        next = scanner.getNext();
+        nextCall = scanner.getCall();
+      }
+
+      if (next != null && nextCall == null && fetched.containsKey(next)) {
+        logger.log(Level.WARNING, "Next page was already fetched; stopping: " + next);
+        break;
+      }
+      url = next;
+      call = nextCall;
+    }
+
+    logger.log(Level.INFO, "Received " + pages + " pages, "
+        + StreamCopier.describeRate(bytes, System.nanoTime() - startNanos));
+  }
+
+  private AsyncFetch.Call submit(AsyncFetch async, String url) {
+    fetched.put(url, Boolean.TRUE);
+    logger.log(Level.INFO, "Fetching " + url);
+    return async.submit(retryPolicy, Method.GET, url, null, null, headers, 0, null);
+  }
+
+  private static HttpResponseMessage getResponse(AsyncFetch.Call call) throws IOException {
+    try {
+      return call.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      IOException ioe = new IOException("Page request failed: " + cause);
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Copies the body out, showing each read to the scanner (if any) until it
+   * finds the next page, which it then starts fetching unless the byte limit
+   * has been reached.
+   *
+   * @param total Bytes written before this body.
+   */
+  private long copy(InputStream body, long total, NextPageScanner scanner) throws IOException {
+    byte[] buf = new byte[COPY_BUFFER_SIZE];
+    long count = 0;
+    int read;
+    while ((read = body.read(buf)) != -1) {
+      if (scanner != null && !scanner.isDone()) {
+        scanner.scan(buf, read, total + count < maxBytes);
+      }
+      out.write(buf, 0, read);
+      count += read;
+    }
+    return count;
+  }
+
+  private String findNextInHeaders(String url, HttpResponseMessage response) {
+    for (Map.Entry<String, String> header : response.headers) {
+      if (!header.getKey().equalsIgnoreCase("Link")) {
+        continue;
+      }
+
+      Matcher link = LINK_HEADER.matcher(header.getValue());
+      while (link.find()) {
+        if (LINK_REL_NEXT.matcher(link.group(2)).find()) {
+          return resolve(url, link.group(1));
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String resolve(String base, String href) {
+    try {
+      return new URL(new URL(base), href).toString();
+    } catch (MalformedURLException e) {
+      logger.log(Level.WARNING, "Bad next page URL: " + href);
+      return null;
+    }
+  }
+
+  /**
+   * The first page's URL, asking for the page after the token.
+   */
+  private String withPageToken(String token) {
+    String url = PAGE_TOKEN_PARAM.matcher(firstUrl).replaceFirst("$1");
+    if (url.endsWith("?") || url.endsWith("&")) {
+      url = url.substring(0, url.length() - 1);
+    }
+
+    try {
+      return url + ((url.indexOf('?') == -1) ? "?" : "&") + "pageToken="
+          + URLEncoder.encode(token, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Looks through a body, as it's read, for where the next page is.
+   */
+  private class NextPageScanner {
+    private final AsyncFetch async;
+    private final String url;
+    private final StringBuilder window = new StringBuilder();
+    private String next;
+    private boolean gaveUp;
+    private AsyncFetch.Call call;
+
+    public NextPageScanner(AsyncFetch async, String url) {
+      this.async = async;
+      this.url = url;
+    }
+
+    public String getNext() {
+      return next;
+    }
+
+    /**
+     * @return Whether there's no point scanning further: the next page was
+     *     found, or its cursor was unreadable.
+     */
+    public boolean isDone() {
+      return next != null || gaveUp;
+    }
+
+    /**
+     * @return The request for the next page, or null if it wasn't started.
+     */
+    public AsyncFetch.Call getCall() {
+      return call;
+    }
+
+    /**
+     * @param fetchNext Whether to fetch the next page if it's found.
+     */
+    public void scan(byte[] buf, int length, boolean fetchNext) {
+      find(buf, length);
+      if (next != null && fetchNext && !fetched.containsKey(next)) {
+        call = submit(async, next);
+      }
+    }
+
+    private void find(byte[] buf, int length) {
+      // Cursors are ASCII, so any bytes-to-chars mapping that keeps ASCII as
+      // is will find them, whatever the body's charset.
+      for (int i = 0; i < length; i++) {
+        window.append((char) (buf[i] & 0xff));
+      }
+
+      Matcher atom = ATOM_LINK.matcher(window);
+      if (atom.find()) {
+        Matcher href = ATOM_HREF.matcher(atom.group());
+        if (href.find()) {
+          next = resolve(url, unescapeXml(href.group(1)));
+          return;
+        }
+      }
+
+      try {
+        Matcher nextLink = JSON_NEXT_LINK.matcher(window);
+        if (nextLink.find()) {
+          next = resolve(url, unescapeJson(nextLink.group(1)));
+          return;
+        }
+
+        Matcher pageToken = JSON_PAGE_TOKEN.matcher(window);
+        if (pageToken.find()) {
+          next = withPageToken(unescapeJson(pageToken.group(1)));
+          return;
+        }
+      } catch (IllegalArgumentException e) {
+        // Treat it as the last page, rather than guess at the cursor.
+        logger.log(Level.WARNING, "Bad next page cursor in " + url + ": " + e.getMessage());
+        gaveUp = true;
+        return;
+      }
+
+      if (window.length() > OVERLAP) {
+        window.delete(0, window.length() - OVERLAP);
+      }
+    }
+  }
+
+  private static String unescapeXml(String s) {
+    return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+        .replace("&apos;", "'").replace("&amp;", "&");
+  }
+
+  /**
+   * @throws IllegalArgumentException if a unicode escape isn't four hex digits.
+   */
+  private static String unescapeJson(String s) {
+    StringBuilder out = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c != '\\' || i + 1 == s.length()) {
+        out.append(c);
+        continue;
+      }
+
+      char escaped = s.charAt(++i);
+      switch (escaped) {
+      case 'u':
+        int code = 0;
+        for (int j = 1; j <= 4; j++) {
+          int digit = (i + j < s.length()) ? Character.digit(s.charAt(i + j), 16) : -1;
+          if (digit == -1) {
+            throw new IllegalArgumentException("Bad \\u escape in \"" + s + "\"");
+          }
+          code = code * 16 + digit;
+        }
+        out.append((char) code);
+        i += 4;
+        break;
+      case 'n':
+        out.append('\n');
+        break;
+      case 't':
+        out.append('\t');
+        break;
+      case 'r':
+        out.append('\r');
+        break;
+      case 'b':
+        out.append('\b');
+        break;
+      case 'f':
+        out.append('\f');
+        break;
+      default:
+        out.append(escaped);
+        break;
+      }
+    }
+    return out.toString();
+  }
+}
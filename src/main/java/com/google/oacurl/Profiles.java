@@ -0,0 +1,112 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+
+import com.google.oacurl.dao.CredentialStore;
+import com.google.oacurl.options.ProfilesOptions;
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * Main class for managing the {@link CredentialStore} of login profiles:
+ * listing them, deleting them, and importing existing login files. New
+ * profiles can also be made with {@link Login} and its --profile option.
+ */
+public class Profiles {
+  public static void main(String[] args) throws Exception {
+    ProfilesOptions options = new ProfilesOptions();
+    CommandLine line;
+    try {
+      line = options.parse(args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+      return;
+    }
+    args = line.getArgs();
+
+    boolean usage = !options.isList() && !options.isImport() && !options.isDelete();
+    if (options.isHelp() || usage || (options.isImport() == (args.length == 0))) {
+      new HelpFormatter().printHelp("--list | --delete --profile NAME | --import FILE...",
+          options.getOptions());
+      System.exit(options.isHelp() ? 0 : -1);
+    }
+
+    CredentialStore store = CredentialStore.forFile(new File(options.getProfileStoreFileName()));
+
+    if (options.isList()) {
+      for (String profile : store.list()) {
+        System.out.println(profile);
+      }
+    } else if (options.isDelete()) {
+      if (store.get(options.getProfile()) == null) {
+        System.err.println("No profile \"" + options.getProfile() + "\" in " + store.getFile());
+        System.exit(-1);
+      }
+      store.remove(options.getProfile());
+    } else {
+      // All in one go, so that importing thousands of files rewrites the
+      // store just once.
+      Map<String, Properties> imports = new LinkedHashMap<String, Properties>();
+      Map<String, String> importedFrom = new HashMap<String, String>();
+      for (String fileName : args) {
+        File file = new File(fileName);
+        if (!file.isFile()) {
+          throw new FileNotFoundException(fileName + " (No such file)");
+        }
+
+        String profile = (options.getProfile() != null)
+            ? options.getProfile() : profileName(file);
+        if (importedFrom.containsKey(profile)) {
+          // Rather than let the later file quietly win.
+          System.err.println("Both " + importedFrom.get(profile) + " and " + fileName
+              + " would be imported as " + profile + "; import them separately with --profile");
+          System.exit(-1);
+        }
+        importedFrom.put(profile, fileName);
+        imports.put(profile, new PropertiesProvider(fileName).get());
+      }
+
+      for (String profile : imports.keySet()) {
+        System.err.println("Importing " + importedFrom.get(profile) + " as " + profile);
+      }
+      store.update(imports);
+    }
+  }
+
+  /**
+   * Turns "~/.oacurl.properties" into "oacurl".
+   */
+  private static String profileName(File file) {
+    String name = file.getName();
+    if (name.startsWith(".")) {
+      name = name.substring(1);
+    }
+    if (name.endsWith(".properties")) {
+      name = name.substring(0, name.length() - ".properties".length());
+    }
+    return name;
+  }
+}
@@ -0,0 +1,299 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.oauth.OAuthException;
+import net.oauth.http.HttpResponseMessage;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import com.google.oacurl.options.FetchOptions.Method;
+
+/**
+ * Decides whether and when {@link Fetch} tries a failed request again.
+ * <p>
+ * Retries back off exponentially, with full jitter so that many clients
+ * failing at once don't all come back at once, and wait at least as long as
+ * a Retry-After header asks. Each attempt is signed afresh, so V1 requests
+ * get a new nonce and timestamp every time.
+ * <p>
+ * What's safe to retry depends on the request:
+ * <ul>
+ *   <li>A request whose connection never opened was never sent, so it can
+ *       always be retried.
+ *   <li>A request with a body can't be retried otherwise, since the body has
+ *       been read.
+ *   <li>GET, PUT and DELETE are idempotent, so they're retried after any I/O
+ *       error or a 408, 429, 500, 502, 503 or 504.
+ *   <li>POST isn't, so it's retried only on 429 and 503, which say the
+ *       request wasn't acted on.
+ * </ul>
+ * Each host also has a circuit breaker, shared by every policy in the
+ * process. After {@link #BREAKER_THRESHOLD} failures in a row it opens, and
+ * requests to that host fail at once, without being sent, until
+ * {@link #BREAKER_COOLDOWN_MILLIS} has passed. Then one request is let
+ * through to see if the host is back.
+ */
+public class RetryPolicy {
+  /** Never retries, and leaves the circuit breakers alone. */
+  public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+  public static final int BREAKER_THRESHOLD = 5;
+  public static final long BREAKER_COOLDOWN_MILLIS = 30 * 1000;
+
+  private static Logger logger = Logger.getLogger(RetryPolicy.class.getName());
+
+  private static final Map<String, CircuitBreaker> breakers =
+      new HashMap<String, CircuitBreaker>();
+
+  private static final Random random = new Random();
+
+  private final int maxRetries;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+
+  /**
+   * One try at a request, signed and sent.
+   */
+  public interface Attempt {
+    HttpResponseMessage execute() throws OAuthException, IOException, URISyntaxException;
+  }
+
+  /**
+   * @param maxRetries How many times to try again after the first attempt.
+   * @param initialDelayMillis Most to wait before the first retry. Doubles
+   *     with each retry after.
+   * @param maxDelayMillis Most to wait between attempts. A Retry-After longer
+   *     than this isn't waited for; the response is returned instead.
+   */
+  public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+    this.maxRetries = maxRetries;
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Makes attempts at a request until one succeeds, retrying is unsafe, or
+   * the retries run out.
+   *
+   * @return The last response, which may still be an error.
+   * @throws IOException from the last attempt, or if the host's circuit
+   *     breaker is open.
+   */
+  public HttpResponseMessage execute(Method method, String url, boolean hasBody,
+      Attempt attempt) throws OAuthException, IOException, URISyntaxException {
+    if (maxRetries == 0) {
+      return attempt.execute();
+    }
+
+    CircuitBreaker breaker = getBreaker(new URL(url));
+    for (int tries = 1; ; tries++) {
+      breaker.before();
+
+      HttpResponseMessage response = null;
+      IOException failure = null;
+      boolean succeeded = false;
+      long retryAfterMillis = 0;
+      try {
+        response = attempt.execute();
+        succeeded = !isFailure(response.getStatusCode());
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        // Anything else thrown (e.g. an OAuthException) counts as a failure
+        // too, and either way ends a half-open breaker's trial.
+        breaker.after(succeeded);
+      }
+
+      if (failure != null) {
+        if (tries > maxRetries || !isRetryable(method, hasBody, failure)) {
+          throw failure;
+        }
+        sleep(tries, 0, failure.toString());
+        continue;
+      }
+
+      int status = response.getStatusCode();
+      if (succeeded || tries > maxRetries || !isRetryable(method, hasBody, status)) {
+        return response;
+      }
+
+      String retryAfter = response.getHeader("Retry-After");
+      if (retryAfter != null) {
+        retryAfterMillis = parseRetryAfter(retryAfter);
+        if (retryAfterMillis > maxDelayMillis) {
+          logger.log(Level.INFO, "Not retrying: server asked for Retry-After " + retryAfter);
+          return response;
+        }
+      }
+
+      // Let the connection go back to the pool.
+      InputStream body = response.getBody();
+      if (body != null) {
+        body.close();
+      }
+      sleep(tries, retryAfterMillis, "HTTP " + status);
+    }
+  }
+
+  private void sleep(int tries, long retryAfterMillis, String why) throws IOException {
+    long ceiling = Math.min(maxDelayMillis, initialDelayMillis << Math.min(tries - 1, 30));
+    long delay;
+    synchronized (random) {
+      delay = (long) (random.nextDouble() * ceiling);
+    }
+    delay = Math.max(delay, retryAfterMillis);
+
+    logger.log(Level.INFO, why + "; retrying in " + delay + " ms (retry " + tries + " of "
+        + maxRetries + ")");
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    }
+  }
+
+  /**
+   * Whether a response means the server is in trouble, and counts against
+   * its circuit breaker.
+   */
+  private static boolean isFailure(int status) {
+    return status == 429 || status >= 500;
+  }
+
+  private static boolean isRetryable(Method method, boolean hasBody, IOException e) {
+    // Never connected, so nothing was sent.
+    if (e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+      return true;
+    }
+    return !hasBody && method != Method.POST;
+  }
+
+  private static boolean isRetryable(Method method, boolean hasBody, int status) {
+    if (hasBody) {
+      return false;
+    }
+    if (status == 429 || status == 503) {
+      return true;
+    }
+    return method != Method.POST && (status == 408 || status == 500 || status == 502
+        || status == 504);
+  }
+
+  /**
+   * @return How long a Retry-After header, in seconds or an HTTP date, asks
+   *     us to wait, or 0 if it can't be read.
+   */
+  static long parseRetryAfter(String retryAfter) {
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000);
+    } catch (NumberFormatException e) {
+      // Not seconds, so try a date.
+    }
+
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      Date date = format.parse(retryAfter);
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return 0;
+    }
+  }
+
+  private static CircuitBreaker getBreaker(URL url) {
+    String host = url.getHost().toLowerCase(Locale.US) + ":"
+        + ((url.getPort() != -1) ? url.getPort() : url.getDefaultPort());
+    synchronized (breakers) {
+      CircuitBreaker breaker = breakers.get(host);
+      if (breaker == null) {
+        breaker = new CircuitBreaker(host);
+        breakers.put(host, breaker);
+      }
+      return breaker;
+    }
+  }
+
+  /**
+   * Counts failures in a row to one host, and stops sending it requests for
+   * a while once there have been too many.
+   */
+  private static class CircuitBreaker {
+    private final String host;
+
+    // Guarded by this.
+    private int failures;
+    private long openUntil;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String host) {
+      this.host = host;
+    }
+
+    /**
+     * @throws IOException if requests to the host should fail fast.
+     */
+    public synchronized void before() throws IOException {
+      if (failures < BREAKER_THRESHOLD) {
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      if (now < openUntil || trialInFlight) {
+        long wait = Math.max(0, openUntil - now) / 1000;
+        throw new IOException("Not sending to " + host + " after " + failures
+            + " failures in a row; trying again in " + wait + " s");
+      }
+
+      // Cooled down: let this one through to see if the host is back.
+      trialInFlight = true;
+    }
+
+    public synchronized void after(boolean succeeded) {
+      trialInFlight = false;
+      if (succeeded) {
+        failures = 0;
+        return;
+      }
+
+      failures++;
+      if (failures >= BREAKER_THRESHOLD) {
+        openUntil = System.currentTimeMillis() + BREAKER_COOLDOWN_MILLIS;
+        if (failures == BREAKER_THRESHOLD) {
+          logger.log(Level.WARNING, host + " failed " + failures
+              + " times in a row; not sending it requests for a while");
+        }
+      }
+    }
+  }
+}
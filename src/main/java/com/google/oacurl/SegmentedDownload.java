@@ -0,0 +1,376 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.oauth.OAuth;
+import net.oauth.OAuth.Parameter;
+import net.oauth.OAuthException;
+import net.oauth.http.HttpMessage;
+import net.oauth.http.HttpResponseMessage;
+
+import com.google.oacurl.options.FetchOptions;
+import com.google.oacurl.options.FetchOptions.Method;
+import com.google.oacurl.util.PropertiesProvider;
+import com.google.oacurl.util.StreamCopier;
+
+/**
+ * Downloads a URL to a file as several byte ranges at once, each its own
+ * signed request.
+ * <p>
+ * The file is preallocated and each range written in place. While the
+ * download runs, a "FILE.oacurl-progress" properties file records how much
+ * of each range is on disk, so that running the same command again after an
+ * interruption fetches only what's missing. If-Range makes sure the pieces
+ * all come from the same version of the resource.
+ * <p>
+ * If the server doesn't do ranges, the probe response is just saved whole.
+ */
+public class SegmentedDownload {
+  public static final String PROGRESS_SUFFIX = ".oacurl-progress";
+
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long SAVE_INTERVAL_MILLIS = 1000;
+
+  private static Logger logger = Logger.getLogger(SegmentedDownload.class.getName());
+
+  private final Fetch fetch;
+  private final String url;
+  private final List<Parameter> headers;
+  private final File outputFile;
+  private final File progressFile;
+  private final int segmentCount;
+  private final PrintStream err;
+
+  private String validator;
+  private long length;
+  private List<Segment> segments;
+
+  public SegmentedDownload(Fetch fetch, FetchOptions options, String url, PrintStream err) {
+    if (options.getMethod() != Method.GET) {
+      throw new IllegalArgumentException("Segmented downloads must be GETs");
+    }
+
+    this.fetch = fetch;
+    this.url = url;
+    // Ranges count bytes of the content as stored, so it has to come back
+    // that way rather than compressed.
+    this.headers = new ArrayList<Parameter>(options.getHeaders());
+    this.headers.add(new OAuth.Parameter(HttpMessage.ACCEPT_ENCODING, "identity"));
+    this.outputFile = new File(options.getOutputFile());
+    this.progressFile = new File(options.getOutputFile() + PROGRESS_SUFFIX);
+    this.segmentCount = options.getSegments();
+    this.err = err;
+  }
+
+  /**
+   * Runs or resumes the download.
+   *
+   * @throws IOException if any range could not be fetched. Progress is saved,
+   *     so the download can be resumed.
+   */
+  public void run() throws OAuthException, IOException, URISyntaxException,
+      InterruptedException {
+    long startNanos = System.nanoTime();
+
+    if (!loadProgress() && !probe()) {
+      return;
+    }
+
+    long alreadyDone = 0;
+    for (Segment segment : segments) {
+      alreadyDone += segment.done.get();
+    }
+    if (alreadyDone > 0) {
+      err.println("Resuming " + outputFile + " with " + alreadyDone + " of " + length
+          + " bytes done");
+    }
+
+    RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+    try {
+      if (file.length() != length) {
+        file.setLength(length);
+      }
+      download(file.getChannel());
+    } finally {
+      file.close();
+    }
+
+    new PropertiesProvider(progressFile.getPath()).delete();
+    err.println("Wrote " + StreamCopier.describeRate(length - alreadyDone,
+        System.nanoTime() - startNanos) + " to " + outputFile);
+  }
+
+  /**
+   * Asks for the first byte to find out the length and whether the server
+   * supports ranges.
+   *
+   * @return false if the server sent the whole thing, which has been saved.
+   */
+  private boolean probe() throws OAuthException, IOException, URISyntaxException {
+    List<Parameter> probeHeaders = new ArrayList<Parameter>(headers);
+    probeHeaders.add(new OAuth.Parameter("Range", "bytes=0-0"));
+    HttpResponseMessage response = fetch.execute(Method.GET, url, null, null, probeHeaders);
+
+    if (response.getStatusCode() != 206) {
+      logger.log(Level.INFO, "Server did not send a range, saving whole response");
+      saveWhole(response);
+      return false;
+    }
+
+    String contentRange = response.getHeader("Content-Range");
+    int slash = (contentRange != null) ? contentRange.lastIndexOf('/') : -1;
+    if (slash == -1 || contentRange.substring(slash + 1).trim().equals("*")) {
+      // The body is only the probe's one byte, so ask again for all of it.
+      logger.log(Level.INFO, "Server did not say the length, fetching whole response");
+      response.getBody().close();
+      saveWhole(fetch.execute(Method.GET, url, null, null, headers));
+      return false;
+    }
+
+    response.getBody().close();
+
+    length = Long.parseLong(contentRange.substring(slash + 1).trim());
+    validator = response.getHeader("ETag");
+    if (validator == null) {
+      validator = response.getHeader("Last-Modified");
+    }
+
+    segments = new ArrayList<Segment>();
+    long segmentLength = Math.max(1, (length + segmentCount - 1) / segmentCount);
+    for (long start = 0; start < length; start += segmentLength) {
+      segments.add(new Segment(start, Math.min(start + segmentLength, length) - 1, 0));
+    }
+
+    saveProgress(snapshotDone());
+    return true;
+  }
+
+  private void saveWhole(HttpResponseMessage response) throws IOException {
+    if (response.getStatusCode() >= 400) {
+      throw new IOException("HTTP " + response.getStatusCode() + " fetching " + url);
+    }
+
+    long startNanos = System.nanoTime();
+    long bytes;
+    FileOutputStream out = new FileOutputStream(outputFile);
+    try {
+      bytes = StreamCopier.copy(response.getBody(), out.getChannel());
+    } finally {
+      out.close();
+    }
+
+    err.println("Wrote " + StreamCopier.describeRate(bytes, System.nanoTime() - startNanos)
+        + " to " + outputFile);
+  }
+
+  private void download(final FileChannel channel) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(segments.size());
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final Segment segment : segments) {
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          fetchSegment(segment, channel);
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+
+    // Save progress regularly so that an interrupted download loses little.
+    // What's done is noted before the file is synced, so the progress never
+    // claims more than the disk has, even while the segments keep writing.
+    IOException failure = null;
+    try {
+      while (!executor.awaitTermination(SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        long[] done = snapshotDone();
+        channel.force(false);
+        saveProgress(done);
+      }
+
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          failure = new IOException("Download incomplete: " + e.getCause().getMessage()
+              + ". Run the same command again to resume.");
+          failure.initCause(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      long[] done = snapshotDone();
+      channel.force(false);
+      saveProgress(done);
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void fetchSegment(Segment segment, FileChannel channel) throws Exception {
+    byte[] buf = new byte[64 * 1024];
+
+    for (int attempt = 1; segment.remaining() > 0; attempt++) {
+      long position = segment.start + segment.done.get();
+
+      List<Parameter> rangeHeaders = new ArrayList<Parameter>(headers);
+      rangeHeaders.add(new OAuth.Parameter("Range", "bytes=" + position + "-" + segment.end));
+      if (validator != null) {
+        rangeHeaders.add(new OAuth.Parameter("If-Range", validator));
+      }
+
+      try {
+        HttpResponseMessage response = fetch.execute(Method.GET, url, null, null, rangeHeaders);
+        if (response.getStatusCode() != 206) {
+          response.getBody().close();
+          // Most likely the resource changed, in which case retrying is no use.
+          throw new IllegalStateException("Got HTTP " + response.getStatusCode()
+              + " for a range; delete " + progressFile + " to start over");
+        }
+
+        InputStream in = response.getBody();
+        try {
+          int count;
+          while (segment.remaining() > 0
+              && (count = in.read(buf, 0, (int) Math.min(buf.length, segment.remaining()))) > -1) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buf, 0, count);
+            while (byteBuffer.hasRemaining()) {
+              channel.write(byteBuffer, position + byteBuffer.position());
+            }
+            position += count;
+            segment.done.addAndGet(count);
+          }
+
+          // HttpClient reports a body cut short as a normal end of stream.
+          if (segment.remaining() > 0) {
+            throw new IOException("Connection closed with " + segment.remaining()
+                + " bytes of the range to go");
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        logger.log(Level.INFO, "Retrying range at " + position + " after: " + e);
+      }
+    }
+  }
+
+  /**
+   * Picks up segment progress from a previous run of the same download.
+   *
+   * @return false if there is nothing to resume.
+   */
+  private boolean loadProgress() throws IOException {
+    if (!progressFile.exists() || !outputFile.exists()) {
+      return false;
+    }
+
+    Properties progress = new PropertiesProvider(progressFile.getPath()).get();
+    if (!url.equals(progress.getProperty("url"))) {
+      err.println("Ignoring " + progressFile + ", which is for a different URL");
+      return false;
+    }
+
+    length = Long.parseLong(progress.getProperty("length"));
+    validator = progress.getProperty("validator");
+
+    segments = new ArrayList<Segment>();
+    int count = Integer.parseInt(progress.getProperty("segments"));
+    for (int i = 0; i < count; i++) {
+      segments.add(new Segment(
+          Long.parseLong(progress.getProperty("segment." + i + ".start")),
+          Long.parseLong(progress.getProperty("segment." + i + ".end")),
+          Long.parseLong(progress.getProperty("segment." + i + ".done"))));
+    }
+
+    return true;
+  }
+
+  private long[] snapshotDone() {
+    long[] done = new long[segments.size()];
+    for (int i = 0; i < done.length; i++) {
+      done[i] = segments.get(i).done.get();
+    }
+    return done;
+  }
+
+  /**
+   * @param done How much of each segment is on disk.
+   */
+  private synchronized void saveProgress(long[] done) throws IOException {
+    Properties progress = new Properties();
+    progress.setProperty("url", url);
+    progress.setProperty("length", Long.toString(length));
+    if (validator != null) {
+      progress.setProperty("validator", validator);
+    }
+
+    progress.setProperty("segments", Integer.toString(segments.size()));
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      progress.setProperty("segment." + i + ".start", Long.toString(segment.start));
+      progress.setProperty("segment." + i + ".end", Long.toString(segment.end));
+      progress.setProperty("segment." + i + ".done", Long.toString(done[i]));
+    }
+
+    new PropertiesProvider(progressFile.getPath()).overwrite(progress);
+  }
+
+  /**
+   * One byte range of the file, from {@code start} to {@code end} inclusive,
+   * of which the first {@code done} bytes are written.
+   */
+  private static class Segment {
+    private final long start;
+    private final long end;
+    private final AtomicLong done;
+
+    public Segment(long start, long end, long done) {
+      this.start = start;
+      this.end = end;
+      this.done = new AtomicLong(done);
+    }
+
+    public long remaining() {
+      return end - start + 1 - done.get();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthException;
+import net.oauth.client.OAuthClient;
+
+import com.google.oacurl.dao.AccessorDao;
+import com.google.oacurl.dao.LoginDao;
+import com.google.oacurl.engine.OAuthEngine;
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * Keeps an OAuth 2 access token fresh for any number of threads.
+ * <p>
+ * Each refresh builds a new accessor and swaps it in, so requests never see
+ * a half-updated one. However many threads find the token expired or turned
+ * down at once, only one refresh is made for it; the rest wait for and use
+ * its result. A background thread refreshes the token a little before it
+ * expires, so that in a long run requests rarely have to wait at all.
+ * <p>
+ * Refreshed tokens are written back to the saved login, so the next process
+ * starts with a good one.
+ */
+public class TokenRefresher {
+  /** How long before expiry the background refresh aims for. */
+  private static final long REFRESH_AHEAD_MILLIS = 5 * 60 * 1000;
+
+  /**
+   * Tokens this close to expiry are refreshed before use, so that they don't
+   * run out on the way to the server.
+   */
+  private static final long EXPIRY_SKEW_MILLIS = 30 * 1000;
+
+  /** After a refresh fails, how long to go on using the old token. */
+  private static final long FAILURE_BACKOFF_MILLIS = 10 * 1000;
+
+  private static Logger logger = Logger.getLogger(TokenRefresher.class.getName());
+
+  private static ScheduledExecutorService scheduler;
+
+  private final OAuthEngine engine;
+  private final OAuthClient client;
+  private final LoginDao loginDao;
+  private final AccessorDao accessorDao = new AccessorDao();
+
+  private final Object lock = new Object();
+  private volatile OAuthAccessor accessor;
+
+  // Guarded by lock.
+  private ScheduledFuture<?> scheduled;
+  private OAuthAccessor failedAccessor;
+  private long failedAtMillis;
+  private boolean closed;
+
+  /**
+   * @param loginDao Login to save refreshed tokens to, or null to not save
+   *     them.
+   */
+  public TokenRefresher(OAuthEngine engine, OAuthClient client, OAuthAccessor accessor,
+      LoginDao loginDao) {
+    this.engine = engine;
+    this.client = client;
+    this.accessor = accessor;
+    this.loginDao = loginDao;
+
+    synchronized (lock) {
+      schedule(accessor);
+    }
+  }
+
+  /**
+   * Whether the accessor has what it takes to be refreshed.
+   */
+  public static boolean canRefresh(OAuthAccessor accessor) {
+    return accessor.getProperty(AccessorDao.REFRESH_TOKEN_PROPERTY) != null
+        && accessor.consumer.serviceProvider.accessTokenURL != null;
+  }
+
+  /**
+   * Returns the accessor to sign the next request with, refreshing it first
+   * if its token has expired.
+   */
+  public OAuthAccessor getAccessor() throws IOException, OAuthException, URISyntaxException {
+    OAuthAccessor current = accessor;
+    if (!expiresWithin(current, EXPIRY_SKEW_MILLIS)) {
+      return current;
+    }
+    return refresh(current);
+  }
+
+  /**
+   * Replaces {@code stale}, whose token has expired or was turned down, with
+   * a refreshed accessor. If some other thread has already replaced it, that
+   * replacement is returned rather than refreshing again.
+   *
+   * @return the new accessor, or {@code stale} itself if the token could not
+   *     be refreshed.
+   */
+  public OAuthAccessor refresh(OAuthAccessor stale)
+      throws IOException, OAuthException, URISyntaxException {
+    synchronized (lock) {
+      if (accessor != stale) {
+        return accessor;
+      }
+
+      // Don't hammer the token endpoint with a refresh per request while it's
+      // failing.
+      if (failedAccessor == stale
+          && System.currentTimeMillis() - failedAtMillis < FAILURE_BACKOFF_MILLIS) {
+        return stale;
+      }
+
+      OAuthAccessor refreshed = accessorDao.copyAccessor(stale);
+      boolean success = false;
+      try {
+        success = engine.refreshAccessToken(refreshed, client);
+      } finally {
+        if (!success) {
+          failedAccessor = stale;
+          failedAtMillis = System.currentTimeMillis();
+        }
+      }
+
+      if (!success) {
+        logger.log(Level.WARNING, "Could not refresh the access token");
+        return stale;
+      }
+
+      accessor = refreshed;
+      save(refreshed);
+      schedule(refreshed);
+      return refreshed;
+    }
+  }
+
+  /**
+   * Stops refreshing in the background. Requests can still refresh the token
+   * when they find it expired.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+    }
+  }
+
+  private static boolean expiresWithin(OAuthAccessor accessor, long millis) {
+    Long expiresAt = (Long) accessor.getProperty(AccessorDao.EXPIRES_AT_PROPERTY);
+    return expiresAt != null && System.currentTimeMillis() + millis >= expiresAt;
+  }
+
+  /**
+   * Sets up the background refresh of the accessor. Called with the lock held.
+   */
+  private void schedule(final OAuthAccessor target) {
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+
+    Long expiresAt = (Long) target.getProperty(AccessorDao.EXPIRES_AT_PROPERTY);
+    if (closed || expiresAt == null) {
+      return;
+    }
+
+    // Tokens that live for less than the usual lead time are refreshed when
+    // they're halfway through.
+    long remaining = expiresAt - System.currentTimeMillis();
+    long delay = Math.max(remaining - REFRESH_AHEAD_MILLIS, remaining / 2);
+
+    scheduled = getScheduler().schedule(new Runnable() {
+      public void run() {
+        try {
+          refresh(target);
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Background token refresh failed", e);
+        }
+      }
+    }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes the refreshed tokens into the saved login, keeping everything else
+   * in it.
+   */
+  private void save(final OAuthAccessor refreshed) {
+    if (loginDao == null) {
+      return;
+    }
+
+    try {
+      loginDao.update(new PropertiesProvider.Update() {
+        public void apply(Properties loginProperties) {
+          accessorDao.saveAccessor(refreshed, loginProperties);
+        }
+      });
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not save the refreshed token to " + loginDao.getName(),
+          e);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "TokenRefresher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scheduler;
+  }
+}
@@ -26,6 +26,18 @@ import net.oauth.OAuthConsumer;
  * @author phopkins@google.com
  */
 public class AccessorDao {
+  /**
+   * Property, both in the file and on the accessor, for an OAuth 2 refresh
+   * token.
+   */
+  public static final String REFRESH_TOKEN_PROPERTY = "refreshToken";
+
+  /**
+   * Property, both in the file and on the accessor, for when the access token
+   * expires, in milliseconds since the epoch. On the accessor it's a Long.
+   */
+  public static final String EXPIRES_AT_PROPERTY = "accessTokenExpiresAt";
+
   private static final String ACCESS_TOKEN_PROPERTY = "accessToken";
   private static final String ACCESS_TOKEN_SECRET_PROPERTY = "accessTokenSecret";
 
@@ -39,11 +51,54 @@ public class AccessorDao {
     accessor.accessToken = properties.getProperty(ACCESS_TOKEN_PROPERTY);
     accessor.tokenSecret = properties.getProperty(ACCESS_TOKEN_SECRET_PROPERTY);
 
+    String refreshToken = properties.getProperty(REFRESH_TOKEN_PROPERTY);
+    if (refreshToken != null) {
+      accessor.setProperty(REFRESH_TOKEN_PROPERTY, refreshToken);
+    }
+
+    String expiresAt = properties.getProperty(EXPIRES_AT_PROPERTY);
+    if (expiresAt != null) {
+      try {
+        accessor.setProperty(EXPIRES_AT_PROPERTY, Long.valueOf(expiresAt.trim()));
+      } catch (NumberFormatException e) {
+        // Then we just don't know when it expires.
+      }
+    }
+
     return accessor;
   }
 
   public void saveAccessor(OAuthAccessor accessor, Properties properties) {
     properties.setProperty(ACCESS_TOKEN_PROPERTY, accessor.accessToken);
     properties.setProperty(ACCESS_TOKEN_SECRET_PROPERTY, accessor.tokenSecret);
+
+    Object refreshToken = accessor.getProperty(REFRESH_TOKEN_PROPERTY);
+    if (refreshToken != null) {
+      properties.setProperty(REFRESH_TOKEN_PROPERTY, refreshToken.toString());
+    } else {
+      properties.remove(REFRESH_TOKEN_PROPERTY);
+    }
+
+    Object expiresAt = accessor.getProperty(EXPIRES_AT_PROPERTY);
+    if (expiresAt != null) {
+      properties.setProperty(EXPIRES_AT_PROPERTY, expiresAt.toString());
+    } else {
+      properties.remove(EXPIRES_AT_PROPERTY);
+    }
+  }
+
+  /**
+   * Copies the tokens of an accessor into a new one, which can be changed
+   * without disturbing threads that are still using the original.
+   * ({@link OAuthAccessor#clone()} would share the properties.)
+   */
+  public OAuthAccessor copyAccessor(OAuthAccessor accessor) {
+    OAuthAccessor copy = newAccessor(accessor.consumer);
+    copy.accessToken = accessor.accessToken;
+    copy.tokenSecret = accessor.tokenSecret;
+    copy.requestToken = accessor.requestToken;
+    copy.setProperty(REFRESH_TOKEN_PROPERTY, accessor.getProperty(REFRESH_TOKEN_PROPERTY));
+    copy.setProperty(EXPIRES_AT_PROPERTY, accessor.getProperty(EXPIRES_AT_PROPERTY));
+    return copy;
   }
 }
@@ -24,12 +24,19 @@ import net.oauth.OAuthServiceProvider;
 /**
  * Small wrapper around a properties file that contains the consumerKey and
  * consumerSecret for an OAuth client.
+ * <p>
+ * It may also have the provider's quota for the key, as "rateLimit"
+ * (requests per second) and "rateBurst" (requests at once), which end up as
+ * properties of the consumer. Service provider files can set these too, as
+ * defaults for every key.
  *
  * @author phopkins@google.com
  */
 public class ConsumerDao {
   private static final String CONSUMER_KEY_PROPERTY = "consumerKey";
   private static final String CONSUMER_SECRET_PROPERTY = "consumerSecret";
+  public static final String RATE_LIMIT_PROPERTY = "rateLimit";
+  public static final String RATE_BURST_PROPERTY = "rateBurst";
 
   private final String defaultConsumerKey;
   private final String defaultConsumerSecret;
@@ -53,11 +60,37 @@ public class ConsumerDao {
     String consumerSecret = properties.getProperty(CONSUMER_SECRET_PROPERTY,
         defaultConsumerSecret);
 
-    return new OAuthConsumer(null, consumerKey, consumerSecret, serviceProvider);
+    OAuthConsumer consumer = new OAuthConsumer(null, consumerKey, consumerSecret,
+        serviceProvider);
+    loadRate(properties, RATE_LIMIT_PROPERTY, consumer);
+    loadRate(properties, RATE_BURST_PROPERTY, consumer);
+    return consumer;
   }
 
   public void saveConsumer(OAuthConsumer consumer, Properties properties) {
     properties.setProperty(CONSUMER_KEY_PROPERTY, consumer.consumerKey);
     properties.setProperty(CONSUMER_SECRET_PROPERTY, consumer.consumerSecret);
+    saveIfSet(consumer, RATE_LIMIT_PROPERTY, properties);
+    saveIfSet(consumer, RATE_BURST_PROPERTY, properties);
+  }
+
+  private static void loadRate(Properties properties, String name, OAuthConsumer consumer) {
+    String value = properties.getProperty(name);
+    if (value == null) {
+      return;
+    }
+
+    try {
+      consumer.setProperty(name, Double.valueOf(value.trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad " + name + ": " + value);
+    }
+  }
+
+  private static void saveIfSet(OAuthConsumer consumer, String name, Properties properties) {
+    Object value = consumer.getProperty(name);
+    if (value != null) {
+      properties.setProperty(name, value.toString());
+    }
   }
 }
@@ -0,0 +1,427 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * A single file of many named login profiles, each the same properties that
+ * would otherwise be a login file of its own.
+ * <p>
+ * The file is memory-mapped and has a hash index of the profile names, so
+ * looking up one profile reads only that profile, however many the store
+ * holds. The layout, all big-endian:
+ * <pre>
+ *   int magic ("OACS"), int version, int slot count, int profile count
+ *   slot count * (int name hash, int record offset), 0 offset if empty
+ *   records: int name length, name, int pair count,
+ *            pair count * (int key length, key, int value length, value)
+ * </pre>
+ * Strings are UTF-8. The slot count is a power of two at least twice the
+ * profile count, probed linearly from the name's {@link String#hashCode()}.
+ * <p>
+ * Changes rewrite the whole store to a temporary file, which then replaces
+ * the old one, with a lock file keeping other processes' changes out of the
+ * way meanwhile. Lookups already under way in other processes keep reading
+ * the old file.
+ */
+public class CredentialStore {
+  private static final int MAGIC = 0x4f414353;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 8;
+
+  private static final Map<String, CredentialStore> stores = new HashMap<String, CredentialStore>();
+
+  private final File file;
+
+  // The current mapping, and what the file looked like when it was made.
+  private ByteBuffer buffer;
+  private long mappedModified;
+  private long mappedLength;
+
+  /**
+   * Returns the store for the file, shared with anyone else in the process
+   * who asks for the same one.
+   */
+  public static CredentialStore forFile(File file) {
+    File absolute = file.getAbsoluteFile();
+    synchronized (stores) {
+      CredentialStore store = stores.get(absolute.getPath());
+      if (store == null) {
+        store = new CredentialStore(absolute);
+        stores.put(absolute.getPath(), store);
+      }
+      return store;
+    }
+  }
+
+  private CredentialStore(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns a copy of the profile's properties, or null if there is no such
+   * profile.
+   */
+  public Properties get(String profile) throws IOException {
+    ByteBuffer buffer = getBuffer(true);
+    if (buffer == null) {
+      return null;
+    }
+
+    try {
+      int offset = findRecord(buffer, profile);
+      if (offset == 0) {
+        return null;
+      }
+
+      buffer.position(offset);
+      skipString(buffer);
+      return readPairs(buffer);
+    } catch (RuntimeException e) {
+      // Bad lengths or offsets, from reading past the end or the like.
+      throw corrupt(e);
+    }
+  }
+
+  /**
+   * Returns the names of all the profiles, sorted.
+   */
+  public List<String> list() throws IOException {
+    return new ArrayList<String>(readAll(true).keySet());
+  }
+
+  public void put(String profile, Properties properties) throws IOException {
+    update(Collections.singletonMap(profile, properties));
+  }
+
+  /**
+   * Adds the profile unless there's already one of that name, with no other
+   * process able to add it in between.
+   *
+   * @return whether it was added.
+   */
+  public boolean add(final String profile, final Properties properties) throws IOException {
+    final boolean[] added = new boolean[1];
+    rewrite(new Rewrite() {
+      public boolean apply(Map<String, Properties> profiles) {
+        if (profiles.containsKey(profile)) {
+          return false;
+        }
+        profiles.put(profile, properties);
+        added[0] = true;
+        return true;
+      }
+    });
+    return added[0];
+  }
+
+  public void remove(String profile) throws IOException {
+    update(Collections.<String, Properties>singletonMap(profile, null));
+  }
+
+  /**
+   * Adds, replaces or (for null properties) removes several profiles in one
+   * rewrite of the store.
+   */
+  public void update(final Map<String, Properties> changes) throws IOException {
+    rewrite(new Rewrite() {
+      public boolean apply(Map<String, Properties> profiles) {
+        for (Map.Entry<String, Properties> change : changes.entrySet()) {
+          if (change.getValue() == null) {
+            profiles.remove(change.getKey());
+          } else {
+            profiles.put(change.getKey(), change.getValue());
+          }
+        }
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Applies the update to the profile's current properties, or to empty ones
+   * if it's new, with no other process able to change it in between.
+   */
+  public void update(final String profile, final PropertiesProvider.Update update)
+      throws IOException {
+    rewrite(new Rewrite() {
+      public boolean apply(Map<String, Properties> profiles) {
+        Properties properties = profiles.get(profile);
+        if (properties == null) {
+          properties = new Properties();
+          profiles.put(profile, properties);
+        }
+        update.apply(properties);
+        return true;
+      }
+    });
+  }
+
+  private interface Rewrite {
+    /**
+     * @return whether the store needs writing back.
+     */
+    boolean apply(Map<String, Properties> profiles);
+  }
+
+  /**
+   * Reads the whole store, applies the changes and writes it back, holding
+   * the lock file throughout. File locks are held by the whole process, so
+   * threads take turns first.
+   */
+  private synchronized void rewrite(Rewrite rewrite) throws IOException {
+    File lockFile = new File(file.getPath() + ".lock");
+    RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw");
+    try {
+      FileLock lock = lockAccess.getChannel().lock();
+      try {
+        // Mapped afresh: another process may have made a change of the same
+        // size within the file system's mtime granularity.
+        Map<String, Properties> profiles = readAll(false);
+        if (rewrite.apply(profiles)) {
+          write(profiles);
+        }
+      } finally {
+        lock.release();
+      }
+    } finally {
+      lockAccess.close();
+    }
+  }
+
+  /**
+   * Returns the mapping of the store as it is now, or null if there's no
+   * store yet.
+   *
+   * @param fromCache Whether the current mapping will do if the file's size
+   *     and modification time haven't changed.
+   */
+  private synchronized ByteBuffer getBuffer(boolean fromCache) throws IOException {
+    long modified = file.lastModified();
+    long length = file.length();
+    if (modified == 0) {
+      buffer = null;
+      return null;
+    }
+
+    if (!fromCache || buffer == null || modified != mappedModified
+        || length != mappedLength) {
+      RandomAccessFile access = new RandomAccessFile(file, "r");
+      try {
+        ByteBuffer mapped = access.getChannel().map(
+            FileChannel.MapMode.READ_ONLY, 0, access.length());
+        if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+          throw new IOException(file + " is not a credential store");
+        }
+        if (mapped.getInt(4) != VERSION) {
+          throw new IOException(file + " is an unknown credential store version: "
+              + mapped.getInt(4));
+        }
+
+        buffer = mapped;
+        mappedModified = modified;
+        mappedLength = length;
+      } finally {
+        access.close();
+      }
+    }
+
+    // Each caller gets its own position to read from.
+    return buffer.duplicate();
+  }
+
+  /**
+   * Returns the offset of the profile's record, or 0 if it's not there.
+   */
+  private static int findRecord(ByteBuffer buffer, String profile) throws IOException {
+    int slots = buffer.getInt(8);
+    if (slots == 0) {
+      return 0;
+    }
+
+    byte[] name = profile.getBytes("UTF-8");
+    int hash = profile.hashCode();
+    int mask = slots - 1;
+    for (int i = 0; i < slots; i++) {
+      int slot = HEADER_SIZE + ((hash + i) & mask) * SLOT_SIZE;
+      int offset = buffer.getInt(slot + 4);
+      if (offset == 0) {
+        return 0;
+      }
+      if (buffer.getInt(slot) == hash && nameMatches(buffer, offset, name)) {
+        return offset;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean nameMatches(ByteBuffer buffer, int offset, byte[] name) {
+    if (buffer.getInt(offset) != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (buffer.get(offset + 4 + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Map<String, Properties> readAll(boolean fromCache) throws IOException {
+    Map<String, Properties> profiles = new TreeMap<String, Properties>();
+    ByteBuffer buffer = getBuffer(fromCache);
+    if (buffer == null) {
+      return profiles;
+    }
+
+    try {
+      int count = buffer.getInt(12);
+      buffer.position(HEADER_SIZE + buffer.getInt(8) * SLOT_SIZE);
+      for (int i = 0; i < count; i++) {
+        String name = readString(buffer);
+        profiles.put(name, readPairs(buffer));
+      }
+    } catch (RuntimeException e) {
+      throw corrupt(e);
+    }
+    return profiles;
+  }
+
+  private void write(Map<String, Properties> profiles) throws IOException {
+    int slots = 1;
+    while (slots < profiles.size() * 2) {
+      slots <<= 1;
+    }
+    if (profiles.isEmpty()) {
+      slots = 0;
+    }
+
+    int recordsStart = HEADER_SIZE + slots * SLOT_SIZE;
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    DataOutputStream records = new DataOutputStream(recordBytes);
+    int[] hashes = new int[slots];
+    int[] offsets = new int[slots];
+
+    for (Map.Entry<String, Properties> profile : profiles.entrySet()) {
+      int hash = profile.getKey().hashCode();
+      int slot = hash & (slots - 1);
+      while (offsets[slot] != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      hashes[slot] = hash;
+      offsets[slot] = recordsStart + records.size();
+
+      writeString(records, profile.getKey());
+      Properties properties = profile.getValue();
+      String[] keys = properties.stringPropertyNames().toArray(new String[0]);
+      Arrays.sort(keys);
+      records.writeInt(keys.length);
+      for (String key : keys) {
+        writeString(records, key);
+        writeString(records, properties.getProperty(key));
+      }
+    }
+    records.flush();
+
+    ByteBuffer header = ByteBuffer.allocate(recordsStart);
+    header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(profiles.size());
+    for (int i = 0; i < slots; i++) {
+      header.putInt(hashes[i]).putInt(offsets[i]);
+    }
+
+    // Tokens are secrets, so the file is the user's alone.
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      temp.setReadable(false, false);
+      temp.setReadable(true, true);
+      out.write(header.array());
+      recordBytes.writeTo(out);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      // Some platforms won't rename over an existing file.
+      file.delete();
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not replace " + file + " with " + temp);
+      }
+    }
+
+    // The new file could have the same size and timestamp as the old.
+    synchronized (this) {
+      buffer = null;
+    }
+  }
+
+  private static Properties readPairs(ByteBuffer buffer) throws IOException {
+    Properties properties = new Properties();
+    int pairs = buffer.getInt();
+    for (int i = 0; i < pairs; i++) {
+      String key = readString(buffer);
+      properties.setProperty(key, readString(buffer));
+    }
+    return properties;
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void skipString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    buffer.position(buffer.position() + length);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private IOException corrupt(RuntimeException cause) {
+    IOException e = new IOException(file + " is corrupt");
+    e.initCause(cause);
+    return e;
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.dao;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.google.oacurl.options.CommonOptions;
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * Where the saved login properties live: either a file of their own, as
+ * named by --access-file, or a profile in a {@link CredentialStore}.
+ */
+public class LoginDao {
+  private final File file;
+  private final String profile;
+
+  public LoginDao(CommonOptions options) {
+    if (options.getProfile() != null) {
+      this.file = new File(options.getProfileStoreFileName()).getAbsoluteFile();
+      this.profile = options.getProfile();
+    } else {
+      this.file = new File(options.getLoginFileName()).getAbsoluteFile();
+      this.profile = null;
+    }
+  }
+
+  /**
+   * @throws FileNotFoundException if there's no such profile. (A missing
+   *     login file just has no properties.)
+   */
+  public Properties load() throws IOException {
+    if (profile == null) {
+      return new PropertiesProvider(file.getPath()).get();
+    }
+
+    Properties properties = CredentialStore.forFile(file).get(profile);
+    if (properties == null) {
+      throw new FileNotFoundException("No profile \"" + profile + "\" in " + file);
+    }
+    return properties;
+  }
+
+  public void save(Properties properties) throws IOException {
+    if (profile == null) {
+      new PropertiesProvider(file.getPath()).overwrite(properties);
+    } else {
+      CredentialStore.forFile(file).put(profile, properties);
+    }
+  }
+
+  /**
+   * Applies the update to the saved login, with no other process able to
+   * change it in between.
+   */
+  public void update(PropertiesProvider.Update update) throws IOException {
+    if (profile == null) {
+      new PropertiesProvider(file.getPath()).update(update);
+    } else {
+      CredentialStore.forFile(file).update(profile, update);
+    }
+  }
+
+  /**
+   * The file that changes when the login does.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Names the login, for messages and for telling logins apart.
+   */
+  public String getName() {
+    return (profile == null) ? file.getPath() : file.getPath() + "#" + profile;
+  }
+}
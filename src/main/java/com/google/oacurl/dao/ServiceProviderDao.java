@@ -40,4 +40,17 @@ public class ServiceProviderDao {
 
     return new OAuthServiceProvider(requestTokenUrl, userAuthorizationUrl, accessTokenUrl);
   }
+
+  public void saveServiceProvider(OAuthServiceProvider serviceProvider, Properties properties) {
+    setIfNotNull(properties, REQUEST_TOKEN_URL_PROPERTY, serviceProvider.requestTokenURL);
+    setIfNotNull(properties, USER_AUTHORIZATION_URL_PROPERTY,
+        serviceProvider.userAuthorizationURL);
+    setIfNotNull(properties, ACCESS_TOKEN_URL_PROPERTY, serviceProvider.accessTokenURL);
+  }
+
+  private static void setIfNotNull(Properties properties, String key, String value) {
+    if (value != null) {
+      properties.setProperty(key, value);
+    }
+  }
 }
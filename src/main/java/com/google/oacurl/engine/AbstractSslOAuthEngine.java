@@ -65,15 +65,55 @@ public abstract class AbstractSslOAuthEngine implements OAuthEngine {
     
     logger.log(Level.INFO, "Fetching access token with parameters: " + accessTokenParams);
 
-    String requestString = OAuth.formEncode(accessTokenParams);
+    postTokenRequest(accessor, client, accessTokenParams);
+
+    return accessor.accessToken != null;
+  }
+
+  /**
+   * Returns the parameters for trading the accessor's refresh token for a new
+   * access token, or null if it has nothing to refresh with.
+   */
+  protected List<OAuth.Parameter> getRefreshTokenParams(OAuthAccessor accessor) {
+    return null;
+  }
+
+  @Override
+  public boolean refreshAccessToken(OAuthAccessor accessor, OAuthClient client)
+      throws IOException, OAuthException, URISyntaxException {
+    List<OAuth.Parameter> refreshParams = getRefreshTokenParams(accessor);
+    if (refreshParams == null || accessor.consumer.serviceProvider.accessTokenURL == null) {
+      return false;
+    }
+
+    logger.log(Level.INFO, "Refreshing access token");
+
+    String oldAccessToken = accessor.accessToken;
+    accessor.accessToken = null;
+    postTokenRequest(accessor, client, refreshParams);
+
+    if (accessor.accessToken == null) {
+      accessor.accessToken = oldAccessToken;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Posts the parameters to the access token URL and parses the response into
+   * the accessor.
+   */
+  private void postTokenRequest(OAuthAccessor accessor, OAuthClient client,
+      List<OAuth.Parameter> params) throws IOException {
+    String requestString = OAuth.formEncode(params);
     byte[] requestBytes = requestString.getBytes("UTF-8");
     InputStream requestStream = new ByteArrayInputStream(requestBytes);
 
-    String url = consumer.serviceProvider.accessTokenURL;
+    String url = accessor.consumer.serviceProvider.accessTokenURL;
 
     HttpMessage request = new HttpMessage("POST", new URL(url), requestStream);
     request.headers.add(new Parameter("Content-Type", "application/x-www-form-urlencoded"));
-    request.headers.add(new Parameter("Content-Length", "" + requestString.length()));
+    request.headers.add(new Parameter("Content-Length", "" + requestBytes.length));
 
     HttpResponseMessage response = client.getHttpClient().execute(request,
         client.getHttpParameters());
@@ -83,13 +123,15 @@ public abstract class AbstractSslOAuthEngine implements OAuthEngine {
     StringBuilder respBuf = new StringBuilder();
 
     String line;
-    while ((line = reader.readLine()) != null) {
-      respBuf.append(line);
+    try {
+      while ((line = reader.readLine()) != null) {
+        respBuf.append(line);
+      }
+    } finally {
+      reader.close();
     }
 
     parseWrapTokenResponse(respBuf.toString(), accessor);
-    
-    return accessor.accessToken != null;
   }
 
   @Override
@@ -26,4 +26,15 @@ public interface OAuthEngine {
   void authMessage(
       OAuthAccessor accessor,
       OAuthMessage message) throws OAuthException, IOException,  URISyntaxException;
+
+  /**
+   * Trades the accessor's refresh token, if it has one, for a new access
+   * token, which is set on the accessor.
+   *
+   * @return false if the token could not be refreshed, in which case the
+   *     accessor is unchanged.
+   */
+  boolean refreshAccessToken(
+      OAuthAccessor accessor,
+      OAuthClient client) throws IOException, OAuthException, URISyntaxException;
 }
@@ -98,6 +98,14 @@ public class V1OAuthEngine implements OAuthEngine {
   @Override
   public void authMessage(OAuthAccessor accessor, OAuthMessage message)
       throws OAuthException, IOException, URISyntaxException {
-    message.addRequiredParameters(accessor);    
+    if (!V1MessageSigner.sign(accessor, message)) {
+      message.addRequiredParameters(accessor);
+    }
+  }
+
+  @Override
+  public boolean refreshAccessToken(OAuthAccessor accessor, OAuthClient client) {
+    // OAuth 1.0a access tokens don't expire.
+    return false;
   }
 }
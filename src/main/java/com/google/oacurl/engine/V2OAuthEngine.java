@@ -18,6 +18,7 @@ import net.oauth.OAuthConsumer;
 import net.oauth.OAuthException;
 import net.oauth.client.OAuthClient;
 
+import com.google.oacurl.dao.AccessorDao;
 import com.google.oacurl.options.LoginOptions;
 
 public class V2OAuthEngine extends AbstractSslOAuthEngine {
@@ -98,14 +99,52 @@ public class V2OAuthEngine extends AbstractSslOAuthEngine {
     return OAuth.newList("grant_type", "authorization_code");
   }
 
+  @Override
+  protected List<Parameter> getRefreshTokenParams(OAuthAccessor accessor) {
+    Object refreshToken = accessor.getProperty(AccessorDao.REFRESH_TOKEN_PROPERTY);
+    if (refreshToken == null) {
+      return null;
+    }
+
+    return OAuth.newList(
+        "client_id", accessor.consumer.consumerKey,
+        "client_secret", accessor.consumer.consumerSecret,
+        "refresh_token", refreshToken.toString(),
+        "grant_type", "refresh_token");
+  }
+
   @Override
   protected void parseWrapTokenResponse(String resp, OAuthAccessor accessor) {
-    JSONObject respObj = (JSONObject) JSONValue.parse(resp);
-    
+    Object parsed = JSONValue.parse(resp);
+    if (!(parsed instanceof JSONObject)) {
+      logger.log(Level.WARNING, "Unparseable access token response: " + resp);
+      return;
+    }
+    JSONObject respObj = (JSONObject) parsed;
+
     String accessToken = (String) respObj.get("access_token");
     if (accessToken != null) {
       accessor.accessToken = accessToken;
       accessor.tokenSecret = "";
+
+      // Refreshes don't always come with a new refresh token, in which case
+      // the old one is still good.
+      Object refreshToken = respObj.get("refresh_token");
+      if (refreshToken != null) {
+        accessor.setProperty(AccessorDao.REFRESH_TOKEN_PROPERTY, refreshToken.toString());
+      }
+
+      Object expiresIn = respObj.get("expires_in");
+      Long expiresAt = null;
+      if (expiresIn != null) {
+        try {
+          expiresAt = System.currentTimeMillis()
+              + Long.parseLong(expiresIn.toString().trim()) * 1000;
+        } catch (NumberFormatException e) {
+          // Leave it as never expiring, and let a 401 trigger the refresh.
+        }
+      }
+      accessor.setProperty(AccessorDao.EXPIRES_AT_PROPERTY, expiresAt);
     }
 
     logger.log(Level.INFO, "Access token response: " + resp);
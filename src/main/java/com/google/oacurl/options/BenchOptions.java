@@ -0,0 +1,114 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.options;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Subclass for {@link Options}s that are used for load testing. The
+ * {@link FetchOptions} that shape the request apply to each one; the ones
+ * about output, retrying and multi-request fetches don't, and are refused.
+ */
+public class BenchOptions extends FetchOptions {
+  /** Long names of the {@link FetchOptions} that Bench has no use for. */
+  private static final List<String> UNSUPPORTED = Arrays.asList(
+      "include", "output", "write-out", "timing", "retry", "retry-delay", "retry-max-delay",
+      "paginate", "max-pages", "max-bytes", "select", "segments", "batch", "unordered");
+
+  private double rate;
+  private long durationMillis;
+  private long warmupMillis;
+
+  public BenchOptions() {
+    options.addOption(null, "rate", true,
+        "Target requests/sec across all threads (default: as fast as possible)");
+    options.addOption(null, "duration", true, "Seconds to measure for (default 10)");
+    options.addOption(null, "warmup", true, "Seconds to run before measuring (default 2)");
+  }
+
+  @Override
+  public CommandLine parse(String[] args) throws ParseException {
+    // Checked before FetchOptions validates them, which would complain
+    // about e.g. --segments without -o rather than that it doesn't apply.
+    CommandLine raw = new GnuParser().parse(options, args);
+    for (String option : UNSUPPORTED) {
+      if (raw.hasOption(option)) {
+        throw new ParseException("--" + option + " can't be used when benchmarking");
+      }
+    }
+
+    CommandLine line = super.parse(args);
+
+    rate = parseDouble(line, "rate", 0);
+    durationMillis = (long) (parseDouble(line, "duration", 10) * 1000);
+    warmupMillis = (long) (parseDouble(line, "warmup", 2) * 1000);
+
+    if (rate < 0 || durationMillis <= 0 || warmupMillis < 0) {
+      throw new ParseException("--rate, --duration and --warmup must be positive");
+    }
+
+    return line;
+  }
+
+  /**
+   * @return The options, less the {@link FetchOptions} that Bench refuses,
+   *     for the help text.
+   */
+  @Override
+  public Options getOptions() {
+    Options supported = new Options();
+    for (Object option : options.getOptions()) {
+      if (!UNSUPPORTED.contains(((Option) option).getLongOpt())) {
+        supported.addOption((Option) option);
+      }
+    }
+    return supported;
+  }
+
+  private static double parseDouble(CommandLine line, String option, double defaultValue)
+      throws ParseException {
+    if (!line.hasOption(option)) {
+      return defaultValue;
+    }
+
+    try {
+      return Double.parseDouble(line.getOptionValue(option));
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --" + option + ": " + line.getOptionValue(option));
+    }
+  }
+
+  /**
+   * @return Target requests per second, or 0 to run each thread flat out.
+   */
+  public double getRate() {
+    return rate;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public long getWarmupMillis() {
+    return warmupMillis;
+  }
+}
@@ -21,41 +21,103 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.google.oacurl.util.WireLog;
+
 public class CommonOptions {
   private static final String DEFAULT_LOGIN_FILE_NAME = ".oacurl.properties";
+  private static final String DEFAULT_PROFILE_STORE_FILE_NAME = ".oacurl-profiles";
 
   protected final Options options;
 
+  private File baseDir;
   private String loginFileName;
+  private String profile;
+  private String profileStoreFileName;
   private boolean help;
   private boolean verbose;
   private boolean insecure;
+  private File wireCaptureFile;
+  private int wireBodyLimit;
 
   public CommonOptions() {
     options = new Options();
     options.addOption(null, "access-file", true, "properties file with access token and secret");
+    options.addOption(null, "profile", true,
+        "Saved login to use from the profile store, rather than the access file");
+    options.addOption(null, "profile-store", true,
+        "File of saved login profiles (default ~/" + DEFAULT_PROFILE_STORE_FILE_NAME + ")");
     options.addOption("h", "help", false, "This help text");
     options.addOption("v", "verbose", false, "Make the operation more talkative");
     options.addOption("k", "insecure", false,
         "Allow connections to SSL sites with non-matching hostnames");
+    options.addOption(null, "wire-capture", true,
+        "File to capture everything sent and received to, bodies and all");
+    options.addOption(null, "wire-body-limit", true,
+        "Most bytes of each body to show in the wire log (default "
+        + WireLog.DEFAULT_BODY_LIMIT + ")");
   }
 
   public CommandLine parse(String[] args) throws ParseException {
     CommandLine line = new GnuParser().parse(options, args);
 
-    loginFileName = line.getOptionValue("access-file",
-        new File(System.getProperty("user.home"), DEFAULT_LOGIN_FILE_NAME).getAbsolutePath());
+    loginFileName = resolvePath(line.getOptionValue("access-file",
+        new File(System.getProperty("user.home"), DEFAULT_LOGIN_FILE_NAME).getAbsolutePath()));
+    profile = line.getOptionValue("profile");
+    profileStoreFileName = resolvePath(line.getOptionValue("profile-store",
+        new File(System.getProperty("user.home"), DEFAULT_PROFILE_STORE_FILE_NAME)
+            .getAbsolutePath()));
     help = line.hasOption("help");
     verbose = line.hasOption("verbose");
     insecure = line.hasOption("insecure");
 
+    String wireCapture = resolvePath(line.getOptionValue("wire-capture"));
+    wireCaptureFile = (wireCapture != null) ? new File(wireCapture) : null;
+    try {
+      wireBodyLimit = Integer.parseInt(line.getOptionValue("wire-body-limit",
+          String.valueOf(WireLog.DEFAULT_BODY_LIMIT)));
+    } catch (NumberFormatException e) {
+      throw new ParseException("--wire-body-limit must be a number");
+    }
+    if (wireBodyLimit < 0) {
+      throw new ParseException("--wire-body-limit can't be negative");
+    }
+
     return line;
   }
 
+  /**
+   * Sets the directory that relative file names are resolved against, for
+   * when the command line came from a process with a different working
+   * directory than ours. Must be called before {@link #parse(String[])}.
+   */
+  public void setBaseDir(File baseDir) {
+    this.baseDir = baseDir;
+  }
+
+  protected String resolvePath(String fileName) {
+    if (baseDir == null || fileName == null || new File(fileName).isAbsolute()) {
+      return fileName;
+    }
+
+    return new File(baseDir, fileName).getPath();
+  }
+
   public String getLoginFileName() {
     return loginFileName;
   }
 
+  /**
+   * Name of the login in the profile store to use, or null to use the login
+   * file.
+   */
+  public String getProfile() {
+    return profile;
+  }
+
+  public String getProfileStoreFileName() {
+    return profileStoreFileName;
+  }
+
   public boolean isHelp() {
     return help;
   }
@@ -68,6 +130,17 @@ public class CommonOptions {
     return insecure;
   }
 
+  /**
+   * File to capture the wire log to, or null for none.
+   */
+  public File getWireCaptureFile() {
+    return wireCaptureFile;
+  }
+
+  public int getWireBodyLimit() {
+    return wireBodyLimit;
+  }
+
   public Options getOptions() {
     return options;
   }
@@ -0,0 +1,347 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.options;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import net.oauth.http.HttpClient;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.google.oacurl.HttpCache;
+import com.google.oacurl.util.PropertiesProvider;
+
+/**
+ * Settings for the HTTP connection pool, shared by the commands that make
+ * requests through it.
+ * <p>
+ * Each setting can be given as a flag, or as a "pool." property in the config
+ * file (by default ~/.oacurl-config.properties), for example:
+ * <pre>
+ * pool.maxTotal = 200
+ * pool.maxPerRoute = 50
+ * pool.keepAlive = 30
+ * pool.staleCheck = false
+ * pool.socketBufferSize = 65536
+ * pool.tcpNoDelay = true
+ * pool.idleTimeout = 60
+ * pool.transport = com.example.Http2Client
+ * pool.rateLimit = 5
+ * pool.rateBurst = 20
+ * pool.cache = on
+ * pool.cacheDir = /var/tmp/oacurl-cache
+ * pool.cacheSize = 500
+ * </pre>
+ * Flags win over the config file.
+ * <p>
+ * The transport is any {@link HttpClient} with a public constructor taking
+ * either these options or nothing. It's made once and shared by every request
+ * in the process, so a client that multiplexes requests over one connection
+ * per host can do so. The other settings here apply only to the default
+ * HttpClient 4 pool; another transport may read them or not.
+ * <p>
+ * The rate limit paces requests to each host for each consumer key, across
+ * every oacurl process on the machine. It overrides any limit saved with the
+ * login (see {@link com.google.oacurl.dao.ConsumerDao}).
+ * <p>
+ * The cache keeps GET responses on disk, for each login, and serves them
+ * while they're fresh (see {@link com.google.oacurl.HttpCache}).
+ */
+public class ConnectionPoolOptions {
+  private static final String DEFAULT_CONFIG_FILE_NAME = ".oacurl-config.properties";
+
+  private int maxTotal;
+  private int maxPerRoute;
+  private boolean maxTotalSet;
+  private boolean maxPerRouteSet;
+  private int keepAliveSeconds;
+  private boolean staleCheck;
+  private int socketBufferSize;
+  private boolean tcpNoDelay;
+  private int idleTimeoutSeconds;
+  private String transport;
+  private double rateLimit;
+  private double rateBurst;
+  private boolean cache;
+  private String cacheDir;
+  private long cacheSizeBytes;
+
+  public void addOptions(Options options) {
+    options.addOption(null, "config", true,
+        "properties file with \"pool.\" settings (default ~/" + DEFAULT_CONFIG_FILE_NAME + ")");
+    options.addOption(null, "max-connections", true,
+        "Maximum pooled connections in total (default 100)");
+    options.addOption(null, "max-connections-per-host", true,
+        "Maximum pooled connections to each host (default 20)");
+    options.addOption(null, "keepalive", true,
+        "Seconds to keep an idle connection for reuse (default: as the server says)");
+    options.addOption(null, "stale-check", true,
+        "Check pooled connections before reuse: on or off (default on)");
+    options.addOption(null, "socket-buffer", true, "Socket buffer size in bytes (default 8192)");
+    options.addOption(null, "tcp-nodelay", true, "Set TCP_NODELAY: on or off (default on)");
+    options.addOption(null, "idle-timeout", true,
+        "Close connections idle this many seconds, from a background thread (default: never)");
+    options.addOption(null, "transport", true,
+        "net.oauth.http.HttpClient class to send requests with (default: pooled HttpClient 4)");
+    options.addOption(null, "rate-limit", true,
+        "Most requests per second to each host per consumer key (default: as saved at login)");
+    options.addOption(null, "rate-burst", true,
+        "Most requests at once under --rate-limit (default: a second's worth)");
+    options.addOption(null, "cache", false,
+        "Keep GET responses on disk, reusing them while fresh and revalidating them after");
+    options.addOption(null, "cache-dir", true,
+        "Directory for --cache (default ~/" + HttpCache.DEFAULT_DIR_NAME + ")");
+    options.addOption(null, "cache-size", true,
+        "Most megabytes --cache keeps, dropping the least recently used (default 100)");
+  }
+
+  public void parse(CommandLine line) throws ParseException {
+    String configFileName = line.getOptionValue("config",
+        new File(System.getProperty("user.home"), DEFAULT_CONFIG_FILE_NAME).getAbsolutePath());
+
+    Properties config;
+    try {
+      config = new PropertiesProvider(configFileName).get();
+    } catch (IOException e) {
+      throw new ParseException("Could not read " + configFileName + ": " + e.getMessage());
+    }
+
+    maxTotalSet = line.hasOption("max-connections") || config.containsKey("pool.maxTotal");
+    maxPerRouteSet = line.hasOption("max-connections-per-host")
+        || config.containsKey("pool.maxPerRoute");
+
+    maxTotal = getInt(line, "max-connections", config, "pool.maxTotal", 100);
+    maxPerRoute = getInt(line, "max-connections-per-host", config, "pool.maxPerRoute", 20);
+    keepAliveSeconds = getInt(line, "keepalive", config, "pool.keepAlive", 0);
+    staleCheck = getBoolean(line, "stale-check", config, "pool.staleCheck", true);
+    socketBufferSize = getInt(line, "socket-buffer", config, "pool.socketBufferSize", 8192);
+    tcpNoDelay = getBoolean(line, "tcp-nodelay", config, "pool.tcpNoDelay", true);
+    idleTimeoutSeconds = getInt(line, "idle-timeout", config, "pool.idleTimeout", 0);
+
+    if (maxTotal < 1 || maxPerRoute < 1 || socketBufferSize < 1) {
+      throw new ParseException("Connection limits and buffer sizes must be at least 1");
+    }
+
+    rateLimit = getDouble(line, "rate-limit", config, "pool.rateLimit", 0);
+    rateBurst = getDouble(line, "rate-burst", config, "pool.rateBurst", 0);
+    if (rateLimit < 0 || rateBurst < 0) {
+      throw new ParseException("--rate-limit and --rate-burst can't be negative");
+    }
+
+    cache = line.hasOption("cache") || getBoolean(line, "cache", config, "pool.cache", false);
+    cacheDir = getValue(line, "cache-dir", config, "pool.cacheDir");
+    if (cacheDir == null) {
+      cacheDir = new File(System.getProperty("user.home"), HttpCache.DEFAULT_DIR_NAME).getPath();
+    }
+    int cacheSize = getInt(line, "cache-size", config, "pool.cacheSize", 100);
+    if (cacheSize < 1) {
+      throw new ParseException("--cache-size must be at least 1");
+    }
+    cacheSizeBytes = cacheSize * 1024L * 1024L;
+
+    transport = getValue(line, "transport", config, "pool.transport");
+    if (transport != null) {
+      try {
+        Class<?> transportClass = Class.forName(transport);
+        if (!HttpClient.class.isAssignableFrom(transportClass)) {
+          throw new ParseException("--transport " + transport + " is not a "
+              + HttpClient.class.getName());
+        }
+      } catch (ClassNotFoundException e) {
+        throw new ParseException("No such --transport class: " + transport);
+      }
+    }
+  }
+
+  /**
+   * Raises the connection limits, unless they were set explicitly, so that
+   * the given number of concurrent requests to one host don't queue for a
+   * connection.
+   */
+  public void ensureCapacity(int concurrency) {
+    if (!maxPerRouteSet) {
+      maxPerRoute = Math.max(maxPerRoute, concurrency);
+    }
+    if (!maxTotalSet) {
+      maxTotal = Math.max(maxTotal, maxPerRoute);
+    }
+  }
+
+  /**
+   * Whether requests made with these settings would go out the same way as
+   * with the other ones, so that a process set up with either can make them.
+   * Connection limits count only where they were set, since each process
+   * raises its own to fit how many requests it makes at once.
+   */
+  public boolean isCompatible(ConnectionPoolOptions other) {
+    if ((maxTotalSet || other.maxTotalSet) && maxTotal != other.maxTotal) {
+      return false;
+    }
+    if ((maxPerRouteSet || other.maxPerRouteSet) && maxPerRoute != other.maxPerRoute) {
+      return false;
+    }
+
+    return keepAliveSeconds == other.keepAliveSeconds
+        && staleCheck == other.staleCheck
+        && socketBufferSize == other.socketBufferSize
+        && tcpNoDelay == other.tcpNoDelay
+        && idleTimeoutSeconds == other.idleTimeoutSeconds
+        && ((transport == null) ? other.transport == null : transport.equals(other.transport))
+        && rateLimit == other.rateLimit
+        && rateBurst == other.rateBurst
+        && cache == other.cache
+        && (!cache || (cacheDir.equals(other.cacheDir)
+            && cacheSizeBytes == other.cacheSizeBytes));
+  }
+
+  private static String getValue(CommandLine line, String option, Properties config,
+      String property) {
+    if (line.hasOption(option)) {
+      return line.getOptionValue(option);
+    }
+
+    String value = config.getProperty(property);
+    return (value != null) ? value.trim() : null;
+  }
+
+  private static int getInt(CommandLine line, String option, Properties config, String property,
+      int defaultValue) throws ParseException {
+    String value = getValue(line, option, config, property);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --" + option + " (" + property + "): " + value);
+    }
+  }
+
+  private static double getDouble(CommandLine line, String option, Properties config,
+      String property, double defaultValue) throws ParseException {
+    String value = getValue(line, option, config, property);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --" + option + " (" + property + "): " + value);
+    }
+  }
+
+  private static boolean getBoolean(CommandLine line, String option, Properties config,
+      String property, boolean defaultValue) throws ParseException {
+    String value = getValue(line, option, config, property);
+    if (value == null) {
+      return defaultValue;
+    } else if (value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true")) {
+      return true;
+    } else if (value.equalsIgnoreCase("off") || value.equalsIgnoreCase("false")) {
+      return false;
+    } else {
+      throw new ParseException("Bad --" + option + " (" + property + "): " + value);
+    }
+  }
+
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  public int getMaxPerRoute() {
+    return maxPerRoute;
+  }
+
+  /**
+   * @return Seconds to keep idle connections, or 0 to go by the server's
+   *     Keep-Alive header.
+   */
+  public int getKeepAliveSeconds() {
+    return keepAliveSeconds;
+  }
+
+  public boolean isStaleCheck() {
+    return staleCheck;
+  }
+
+  public int getSocketBufferSize() {
+    return socketBufferSize;
+  }
+
+  public boolean isTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  /**
+   * @return Seconds after which idle connections are closed, or 0 to leave
+   *     them open.
+   */
+  public int getIdleTimeoutSeconds() {
+    return idleTimeoutSeconds;
+  }
+
+  /**
+   * @return The class name of the transport to use, or null for the default
+   *     HttpClient 4 pool.
+   */
+  public String getTransport() {
+    return transport;
+  }
+
+  /**
+   * @return Requests per second to allow each host and consumer key, or 0
+   *     to go by the login.
+   */
+  public double getRateLimit() {
+    return rateLimit;
+  }
+
+  /**
+   * @return Requests to allow at once under the rate limit, or 0 for the
+   *     default.
+   */
+  public double getRateBurst() {
+    return rateBurst;
+  }
+
+  public boolean isCache() {
+    return cache;
+  }
+
+  public String getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * Sets the cache directory as resolved against the working directory of
+   * whoever gave it, which may not be ours.
+   */
+  void setCacheDir(String cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * @return How big to let the cache grow, in bytes.
+   */
+  public long getCacheSizeBytes() {
+    return cacheSizeBytes;
+  }
+}
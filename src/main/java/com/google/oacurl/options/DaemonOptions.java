@@ -0,0 +1,74 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.options;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Subclass for {@link Options}s that are used to run the fetch daemon.
+ */
+public class DaemonOptions extends CommonOptions {
+  private int port;
+  private int threads;
+  private final ConnectionPoolOptions poolOptions = new ConnectionPoolOptions();
+
+  public DaemonOptions() {
+    options.addOption(null, "port", true, "Loopback port to listen on (default: any free port)");
+    options.addOption(null, "threads", true, "Number of fetches to serve at once (default 16)");
+    poolOptions.addOptions(options);
+  }
+
+  @Override
+  public CommandLine parse(String[] args) throws ParseException {
+    CommandLine line = super.parse(args);
+
+    port = parseInt(line, "port", 0);
+    threads = parseInt(line, "threads", 16);
+    if (threads < 1) {
+      throw new ParseException("--threads must be at least 1");
+    }
+
+    poolOptions.parse(line);
+    poolOptions.ensureCapacity(threads);
+
+    return line;
+  }
+
+  private static int parseInt(CommandLine line, String option, int defaultValue)
+      throws ParseException {
+    if (!line.hasOption(option)) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(line.getOptionValue(option));
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --" + option + ": " + line.getOptionValue(option));
+    }
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public ConnectionPoolOptions getPoolOptions() {
+    return poolOptions;
+  }
+}
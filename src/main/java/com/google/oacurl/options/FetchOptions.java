@@ -26,7 +26,10 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.ParseException;
 
+import com.google.oacurl.RetryPolicy;
+import com.google.oacurl.util.JsonSelectStream;
 import com.google.oacurl.util.MultipartRelatedInputStream;
+import com.google.oacurl.util.RequestTiming;
 
 
 public class FetchOptions extends CommonOptions {
@@ -53,9 +56,22 @@ public class FetchOptions extends CommonOptions {
   private Method method = Method.GET;
   private String contentType = "application/atom+xml";
   private String file;
+  private String outputFile;
   private List<OAuth.Parameter> headers;
   private List<Map.Entry<String, String>> related;
   private boolean include;
+  private String batchFile;
+  private int concurrency;
+  private boolean unordered;
+  private int segments;
+  private boolean compressBody;
+  private String writeOut;
+  private RetryPolicy retryPolicy;
+  private boolean paginate;
+  private int maxPages;
+  private long maxBytes;
+  private String select;
+  private final ConnectionPoolOptions poolOptions = new ConnectionPoolOptions();
 
   @SuppressWarnings("static-access")
   public FetchOptions() {
@@ -69,6 +85,33 @@ public class FetchOptions extends CommonOptions {
     options.addOption("t", "content-type", true,
         "Content-Type header (or ATOM, XML, JSON, CSV, TEXT)");
     options.addOption("i", "include", false, "Include protocol headers in the output");
+    options.addOption("o", "output", true, "Write output to this file rather than stdout");
+    options.addOption(null, "compress-body", false, "Gzip the request body on the way out");
+    options.addOption("w", "write-out", true,
+        "Print this to stderr when done, with %{time_connect} etc. filled in, or \"json\"");
+    options.addOption(null, "timing", false,
+        "Print how long each phase of the request took to stderr when done");
+    options.addOption(null, "retry", true,
+        "Retry failed requests this many times, backing off in between (default 0)");
+    options.addOption(null, "retry-delay", true,
+        "Milliseconds to back off before the first retry, doubling after (default 1000)");
+    options.addOption(null, "retry-max-delay", true,
+        "Most seconds to wait between retries, or for a Retry-After (default 60)");
+    options.addOption(null, "paginate", false,
+        "Follow next-page links (Link header, Atom, JSON nextPageToken) and write every page");
+    options.addOption(null, "max-pages", true, "Most pages to fetch with --paginate");
+    options.addOption(null, "max-bytes", true,
+        "Stop fetching pages with --paginate once this many bytes have been written");
+    options.addOption(null, "select", true,
+        "Write just the JSON values at this path (e.g. items[].id), one per line");
+    options.addOption(null, "segments", true,
+        "Download to the -o file as this many concurrent ranges, resumably");
+    options.addOption(null, "batch", true,
+        "File (or - for stdin) of requests, one per line: METHOD, URL, body file, headers, tab-separated");
+    options.addOption("j", "concurrency", true, "Number of requests to run at once (default 4)");
+    options.addOption(null, "unordered", false,
+        "Write batch results as they finish, rather than in request order");
+    poolOptions.addOptions(options);
   }
 
   @Override
@@ -78,7 +121,7 @@ public class FetchOptions extends CommonOptions {
     headers = new ArrayList<OAuth.Parameter>();
 
     if (line.hasOption("file")) {
-      file = line.getOptionValue("file");
+      file = resolvePath(line.getOptionValue("file"));
       contentType = guessContentType(file);
       method = Method.POST;
       headers.add(new OAuth.Parameter("Slug", new File(file).getName()));
@@ -107,7 +150,7 @@ public class FetchOptions extends CommonOptions {
       for (String relatedFile : relatedArray) {
         String[] fileBits = relatedFile.split(";", 2);
 
-        String fileName = fileBits[0];
+        String fileName = resolvePath(fileBits[0]);
         String contentType;
         if (fileBits.length == 2) {
           contentType = fileBits[1];
@@ -120,11 +163,111 @@ public class FetchOptions extends CommonOptions {
     }
 
     include = line.hasOption("include");
+    outputFile = resolvePath(line.getOptionValue("output"));
+
+    batchFile = line.getOptionValue("batch");
+    if (batchFile != null && !batchFile.equals("-")) {
+      batchFile = resolvePath(batchFile);
+    }
+    unordered = line.hasOption("unordered");
+    try {
+      concurrency = Integer.parseInt(line.getOptionValue("concurrency", "4"));
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --concurrency: " + line.getOptionValue("concurrency"));
+    }
+    if (concurrency < 1) {
+      throw new ParseException("--concurrency must be at least 1");
+    }
+
+    try {
+      segments = Integer.parseInt(line.getOptionValue("segments", "0"));
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --segments: " + line.getOptionValue("segments"));
+    }
+
+    poolOptions.parse(line);
+    poolOptions.setCacheDir(resolvePath(poolOptions.getCacheDir()));
+    poolOptions.ensureCapacity(Math.max(concurrency, segments));
 
     if (line.hasOption("request")) {
       method = Method.valueOf(line.getOptionValue("request"));
     }
 
+    // OAuth 1.0a signs form parameters in the body, and servers have to read
+    // them back out to check the signature.
+    compressBody = line.hasOption("compress-body");
+    if (compressBody && contentType.startsWith(OAuth.FORM_ENCODED)) {
+      throw new ParseException("--compress-body can't be used for form-encoded bodies");
+    }
+
+    if (line.hasOption("timing")) {
+      writeOut = RequestTiming.DEFAULT_TEMPLATE;
+    }
+    writeOut = line.getOptionValue("write-out", writeOut);
+    if (writeOut != null) {
+      String unknown = RequestTiming.findUnknownVariable(writeOut);
+      if (unknown != null) {
+        throw new ParseException("Unknown --write-out variable: " + unknown
+            + " (known: " + RequestTiming.VARIABLES + ")");
+      }
+      if (batchFile != null || segments > 0) {
+        throw new ParseException("--write-out and --timing work only for single fetches");
+      }
+    }
+
+    int retries;
+    long retryDelayMillis;
+    long retryMaxDelaySeconds;
+    try {
+      retries = Integer.parseInt(line.getOptionValue("retry", "0"));
+      retryDelayMillis = Long.parseLong(line.getOptionValue("retry-delay", "1000"));
+      retryMaxDelaySeconds = Long.parseLong(line.getOptionValue("retry-max-delay", "60"));
+    } catch (NumberFormatException e) {
+      throw new ParseException("--retry, --retry-delay and --retry-max-delay must be numbers");
+    }
+    if (retries < 0 || retryDelayMillis < 0 || retryMaxDelaySeconds < 0) {
+      throw new ParseException("--retry, --retry-delay and --retry-max-delay can't be negative");
+    }
+    if (retries > 0 && segments > 0) {
+      throw new ParseException("--retry can't be used with --segments, which resumes instead");
+    }
+    retryPolicy = (retries > 0)
+        ? new RetryPolicy(retries, retryDelayMillis, retryMaxDelaySeconds * 1000)
+        : RetryPolicy.NONE;
+
+    paginate = line.hasOption("paginate");
+    try {
+      maxPages = Integer.parseInt(line.getOptionValue("max-pages",
+          String.valueOf(Integer.MAX_VALUE)));
+      maxBytes = Long.parseLong(line.getOptionValue("max-bytes", String.valueOf(Long.MAX_VALUE)));
+    } catch (NumberFormatException e) {
+      throw new ParseException("--max-pages and --max-bytes must be numbers");
+    }
+    if (maxPages < 1 || maxBytes < 1) {
+      throw new ParseException("--max-pages and --max-bytes must be at least 1");
+    }
+    if (paginate && (method != Method.GET || include || batchFile != null || segments > 0
+        || writeOut != null)) {
+      throw new ParseException("--paginate works only for single GETs, without -i, --segments "
+          + "or --write-out");
+    }
+
+    select = line.getOptionValue("select");
+    if (select != null) {
+      try {
+        JsonSelectStream.checkPath(select);
+      } catch (IllegalArgumentException e) {
+        throw new ParseException("Bad --select: " + e.getMessage());
+      }
+      if (include || batchFile != null || segments > 0) {
+        throw new ParseException("--select can't be used with -i, --batch or --segments");
+      }
+    }
+
+    if (segments > 0 && (outputFile == null || method != Method.GET || include)) {
+      throw new ParseException("--segments needs -o, and works only for GETs without -i");
+    }
+
     return line;
   }
 
@@ -174,4 +317,73 @@ public class FetchOptions extends CommonOptions {
   public String getFile() {
     return file;
   }
+
+  public String getOutputFile() {
+    return outputFile;
+  }
+
+  public String getBatchFile() {
+    return batchFile;
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  public boolean isUnordered() {
+    return unordered;
+  }
+
+  /**
+   * @return The number of ranges to download at once, or 0 for a plain fetch.
+   */
+  public int getSegments() {
+    return segments;
+  }
+
+  public boolean isCompressBody() {
+    return compressBody;
+  }
+
+  /**
+   * @return The --write-out template, or null to not print one.
+   */
+  public String getWriteOut() {
+    return writeOut;
+  }
+
+  public boolean isPaginate() {
+    return paginate;
+  }
+
+  /**
+   * @return The most pages to fetch with --paginate.
+   */
+  public int getMaxPages() {
+    return maxPages;
+  }
+
+  /**
+   * @return How many bytes --paginate writes before it stops fetching more
+   *     pages. The page that crosses the limit is written whole.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return The path of the JSON values to write, or null to write the whole
+   *     response.
+   */
+  public String getSelect() {
+    return select;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  public ConnectionPoolOptions getPoolOptions() {
+    return poolOptions;
+  }
 }
@@ -0,0 +1,96 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.options;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Subclass for {@link Options}s that are used to run the login broker. The
+ * {@link LoginOptions} that pick the service provider, consumer, scope and
+ * OAuth version apply to every login it serves.
+ */
+public class LoginBrokerOptions extends LoginOptions {
+  private int port;
+  private int threads;
+  private int reportSeconds;
+  private boolean overwrite;
+  private final ConnectionPoolOptions poolOptions = new ConnectionPoolOptions();
+
+  public LoginBrokerOptions() {
+    options.addOption(null, "port", true, "Port to listen on (default 8080)");
+    options.addOption(null, "threads", true,
+        "Number of browser requests to handle at once (default 16)");
+    options.addOption(null, "report", true,
+        "Seconds between progress reports on stderr, or 0 for none (default 10)");
+    options.addOption(null, "overwrite", false,
+        "Let logins replace existing profiles, rather than refusing them");
+    poolOptions.addOptions(options);
+  }
+
+  @Override
+  public CommandLine parse(String[] args) throws ParseException {
+    CommandLine line = super.parse(args);
+
+    port = parseInt(line, "port", 8080);
+    threads = parseInt(line, "threads", 16);
+    reportSeconds = parseInt(line, "report", 10);
+    overwrite = line.hasOption("overwrite");
+    if (threads < 1 || reportSeconds < 0) {
+      throw new ParseException("--threads must be at least 1, and --report positive");
+    }
+
+    poolOptions.parse(line);
+    poolOptions.ensureCapacity(threads);
+
+    return line;
+  }
+
+  private static int parseInt(CommandLine line, String option, int defaultValue)
+      throws ParseException {
+    if (!line.hasOption(option)) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(line.getOptionValue(option));
+    } catch (NumberFormatException e) {
+      throw new ParseException("Bad --" + option + ": " + line.getOptionValue(option));
+    }
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getReportSeconds() {
+    return reportSeconds;
+  }
+
+  /**
+   * @return Whether a login may replace a profile that already exists.
+   */
+  public boolean isOverwrite() {
+    return overwrite;
+  }
+
+  public ConnectionPoolOptions getPoolOptions() {
+    return poolOptions;
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.options;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Subclass for {@link Options}s that are used to manage the profile store.
+ */
+public class ProfilesOptions extends CommonOptions {
+  private boolean list;
+  private boolean importFiles;
+  private boolean delete;
+
+  public ProfilesOptions() {
+    options.addOption("l", "list", false, "List the saved profiles");
+    options.addOption(null, "import", false,
+        "Import the login files named as arguments, each as the profile named by"
+        + " --profile or else by the file name, minus any leading dot and .properties");
+    options.addOption(null, "delete", false, "Delete the profile named by --profile");
+  }
+
+  @Override
+  public CommandLine parse(String[] args) throws ParseException {
+    CommandLine line = super.parse(args);
+
+    list = line.hasOption("list");
+    importFiles = line.hasOption("import");
+    delete = line.hasOption("delete");
+
+    if ((list ? 1 : 0) + (importFiles ? 1 : 0) + (delete ? 1 : 0) > 1) {
+      throw new ParseException("Only one of --list, --import and --delete may be given");
+    }
+    if (delete && getProfile() == null) {
+      throw new ParseException("--delete needs a --profile");
+    }
+    if (importFiles && getProfile() != null && line.getArgs().length > 1) {
+      throw new ParseException("--profile can only name a single imported file");
+    }
+
+    return line;
+  }
+
+  public boolean isList() {
+    return list;
+  }
+
+  public boolean isImport() {
+    return importFiles;
+  }
+
+  public boolean isDelete() {
+    return delete;
+  }
+}
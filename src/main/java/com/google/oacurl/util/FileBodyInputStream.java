@@ -0,0 +1,41 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+/**
+ * A file to upload as a request body, which knows its length if it's a
+ * regular file. Named pipes and devices (e.g. "-f /dev/stdin") report an
+ * unknown length and so get sent chunked.
+ */
+public class FileBodyInputStream extends FileInputStream implements KnownLength {
+  private final long length;
+
+  public FileBodyInputStream(String fileName) throws FileNotFoundException {
+    this(new File(fileName));
+  }
+
+  public FileBodyInputStream(File file) throws FileNotFoundException {
+    super(file);
+    this.length = file.isFile() ? file.length() : -1;
+  }
+
+  public long getLength() {
+    return length;
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reads another stream gzipped, compressing as it goes so that a body of any
+ * size can be uploaded without first being compressed into memory or a file.
+ * <p>
+ * The compressed length isn't known until the end, so bodies sent with this
+ * go chunked.
+ */
+public class GzipBodyInputStream extends InputStream {
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b,      // Magic
+    Deflater.DEFLATED,      // Compression method
+    0,                      // Flags
+    0, 0, 0, 0,             // Modification time: none
+    0,                      // Extra flags
+    (byte) 0xff,            // OS: unknown
+  };
+
+  private final InputStream in;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] inBuf = new byte[8192];
+  private long inLength;
+
+  // Header or trailer bytes waiting to be read.
+  private byte[] pending = HEADER;
+  private int pendingPos;
+  private boolean trailerWritten;
+
+  public GzipBodyInputStream(InputStream in) {
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    while (true) {
+      if (pending != null) {
+        int count = Math.min(len, pending.length - pendingPos);
+        System.arraycopy(pending, pendingPos, b, off, count);
+        pendingPos += count;
+        if (pendingPos == pending.length) {
+          pending = null;
+        }
+        return count;
+      }
+
+      if (deflater.finished()) {
+        if (trailerWritten) {
+          return -1;
+        }
+        pending = trailer();
+        pendingPos = 0;
+        trailerWritten = true;
+        continue;
+      }
+
+      int count = deflater.deflate(b, off, len);
+      if (count > 0) {
+        return count;
+      }
+
+      if (deflater.needsInput()) {
+        int read = in.read(inBuf);
+        if (read == -1) {
+          deflater.finish();
+        } else if (read > 0) {
+          crc.update(inBuf, 0, read);
+          inLength += read;
+          deflater.setInput(inBuf, 0, read);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    deflater.end();
+    in.close();
+  }
+
+  /**
+   * The CRC and length (mod 2^32) of the uncompressed data, little-endian.
+   */
+  private byte[] trailer() {
+    long crcValue = crc.getValue();
+    byte[] trailer = new byte[8];
+    for (int i = 0; i < 4; i++) {
+      trailer[i] = (byte) (crcValue >> (8 * i));
+      trailer[4 + i] = (byte) (inLength >> (8 * i));
+    }
+    return trailer;
+  }
+}
@@ -0,0 +1,404 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks values out of JSON written to it and writes each one out on a line
+ * of its own (NDJSON), as the JSON streams through.
+ * <p>
+ * Paths are keys separated by dots, where "[]" after a key (or alone, at
+ * the start) means every element of an array and "[N]" means element N:
+ * <pre>
+ *   items[].id       the id of each item
+ *   data.items[0]    the first item, whole
+ *   [].name          the name of each element of a top-level array
+ * </pre>
+ * No tree is built: the JSON is tokenized a byte at a time, keeping only the
+ * keys and indices leading to the current value, and a match is copied out
+ * as its bytes go by, minus any whitespace between tokens. Strings are
+ * copied as is, escapes and all, so the output is JSON too. Several JSON
+ * values one after another (as from --paginate) are each searched in turn.
+ */
+public class JsonSelectStream extends OutputStream {
+  /** Matches any array index. */
+  private static final int ANY_INDEX = -1;
+
+  // What the tokenizer expects next.
+  private static final int VALUE = 0;
+  private static final int KEY_OR_END = 1;
+  private static final int KEY = 2;
+  private static final int COLON = 3;
+  private static final int COMMA_OR_END = 4;
+  private static final int VALUE_OR_END = 5;
+  private static final int IN_STRING = 6;
+  private static final int IN_STRING_ESCAPE = 7;
+  private static final int IN_BARE = 8;
+
+  /**
+   * One step of a path: an object key, or else an array index.
+   */
+  private static class Step {
+    final String key;
+    final int index;
+
+    Step(String key, int index) {
+      this.key = key;
+      this.index = index;
+    }
+  }
+
+  /**
+   * Where the tokenizer is: in an object (with the key of the current value)
+   * or an array (with the current index).
+   */
+  private static class Level {
+    final boolean array;
+    String key;
+    int index = -1;
+
+    Level(boolean array) {
+      this.array = array;
+    }
+  }
+
+  private final OutputStream out;
+  private final Step[] path;
+
+  private final List<Level> levels = new ArrayList<Level>();
+  private int state = VALUE;
+  /** Whether the string being read is a key. */
+  private boolean readingKey;
+  private final ByteArrayOutputStream key = new ByteArrayOutputStream();
+  private long offset;
+
+  /** Depth at which the value being copied out started, or -1 if none is. */
+  private int matchDepth = -1;
+
+  private final byte[] buf = new byte[8192];
+  private int bufCount;
+
+  /**
+   * @throws IllegalArgumentException if the path can't be parsed.
+   */
+  public JsonSelectStream(OutputStream out, String path) {
+    this.out = out;
+    this.path = parsePath(path);
+  }
+
+  /**
+   * Checks a path, for option parsing.
+   *
+   * @throws IllegalArgumentException if the path can't be parsed.
+   */
+  public static void checkPath(String path) {
+    parsePath(path);
+  }
+
+  private static Step[] parsePath(String path) {
+    List<Step> steps = new ArrayList<Step>();
+    int i = 0;
+    while (i < path.length()) {
+      char c = path.charAt(i);
+      if (c == '[') {
+        int close = path.indexOf(']', i);
+        if (close == -1) {
+          throw new IllegalArgumentException("Missing ] in " + path);
+        }
+        String index = path.substring(i + 1, close).trim();
+        try {
+          steps.add(new Step(null, index.length() == 0 ? ANY_INDEX : Integer.parseInt(index)));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Bad array index in " + path + ": " + index);
+        }
+        i = close + 1;
+      } else if (c == '.' && i > 0 && i + 1 < path.length()) {
+        i++;
+      } else {
+        int end = i;
+        while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+          end++;
+        }
+        if (end == i) {
+          throw new IllegalArgumentException("Empty key in " + path);
+        }
+        steps.add(new Step(path.substring(i, end), 0));
+        i = end;
+      }
+    }
+
+    if (steps.isEmpty()) {
+      throw new IllegalArgumentException("Empty path");
+    }
+    return steps.toArray(new Step[steps.size()]);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    process((byte) b);
+    flushBuffer();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      // Most of most JSON is strings we're not copying or keeping, so skip
+      // through those quickly.
+      if (state == IN_STRING && matchDepth == -1 && !readingKey) {
+        int start = i;
+        while (i < end && b[i] != '"' && b[i] != '\\') {
+          i++;
+        }
+        offset += i - start;
+        if (i == end) {
+          break;
+        }
+      }
+      process(b[i]);
+    }
+    flushBuffer();
+  }
+
+  /**
+   * Checks that the JSON didn't stop partway through a value, and flushes.
+   *
+   * @throws IOException if it did.
+   */
+  public void finish() throws IOException {
+    if (state == IN_BARE) {
+      endBare();
+    }
+    flushBuffer();
+    out.flush();
+    if (!levels.isEmpty() || state != VALUE) {
+      throw new IOException("JSON ended partway through a value");
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+
+  private void process(byte b) throws IOException {
+    offset++;
+
+    switch (state) {
+    case IN_STRING:
+      copy(b);
+      if (b == '"') {
+        endString();
+      } else if (b == '\\') {
+        state = IN_STRING_ESCAPE;
+      } else if (readingKey) {
+        key.write(b);
+      }
+      return;
+
+    case IN_STRING_ESCAPE:
+      copy(b);
+      if (readingKey) {
+        // Keys with escapes are compared escaped, except for the common
+        // case of an escaped slash or quote.
+        if (b != '/' && b != '"' && b != '\\') {
+          key.write('\\');
+        }
+        key.write(b);
+      }
+      state = IN_STRING;
+      return;
+
+    case IN_BARE:
+      if (isBare(b)) {
+        copy(b);
+        return;
+      }
+      endBare();
+      // This byte is the start of whatever follows.
+      break;
+    }
+
+    if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+      return;
+    }
+
+    switch (state) {
+    case VALUE:
+    case VALUE_OR_END:
+      if (state == VALUE_OR_END && b == ']') {
+        endContainer(b);
+      } else {
+        startValue(b);
+      }
+      return;
+
+    case KEY_OR_END:
+    case KEY:
+      if (state == KEY_OR_END && b == '}') {
+        endContainer(b);
+      } else if (b == '"') {
+        copy(b);
+        readingKey = true;
+        key.reset();
+        state = IN_STRING;
+      } else {
+        throw badJson(b);
+      }
+      return;
+
+    case COLON:
+      if (b != ':') {
+        throw badJson(b);
+      }
+      copy(b);
+      state = VALUE;
+      return;
+
+    case COMMA_OR_END:
+      Level level = levels.get(levels.size() - 1);
+      if (b == ',') {
+        copy(b);
+        state = level.array ? VALUE : KEY;
+      } else if (b == (level.array ? ']' : '}')) {
+        endContainer(b);
+      } else {
+        throw badJson(b);
+      }
+      return;
+    }
+  }
+
+  private void startValue(byte b) throws IOException {
+    if (!levels.isEmpty()) {
+      Level level = levels.get(levels.size() - 1);
+      if (level.array) {
+        level.index++;
+      }
+    }
+
+    if (matchDepth == -1 && matches()) {
+      matchDepth = levels.size();
+    }
+    copy(b);
+
+    if (b == '{' || b == '[') {
+      levels.add(new Level(b == '['));
+      state = (b == '[') ? VALUE_OR_END : KEY_OR_END;
+    } else if (b == '"') {
+      readingKey = false;
+      state = IN_STRING;
+    } else if (isBare(b)) {
+      state = IN_BARE;
+    } else {
+      throw badJson(b);
+    }
+  }
+
+  private void endString() throws IOException {
+    if (readingKey) {
+      levels.get(levels.size() - 1).key = new String(key.toByteArray(), "UTF-8");
+      state = COLON;
+    } else {
+      endValue();
+    }
+  }
+
+  private void endBare() throws IOException {
+    endValue();
+  }
+
+  private void endContainer(byte b) throws IOException {
+    copy(b);
+    levels.remove(levels.size() - 1);
+    endValue();
+  }
+
+  /**
+   * A value has ended at the current depth: finish copying it if it matched,
+   * and go on to whatever comes after.
+   */
+  private void endValue() throws IOException {
+    if (matchDepth == levels.size()) {
+      append((byte) '\n');
+      matchDepth = -1;
+    }
+    state = levels.isEmpty() ? VALUE : COMMA_OR_END;
+  }
+
+  /**
+   * Whether the value starting now is at the path.
+   */
+  private boolean matches() {
+    if (levels.size() != path.length) {
+      return false;
+    }
+
+    for (int i = 0; i < path.length; i++) {
+      Level level = levels.get(i);
+      Step step = path[i];
+      if (level.array) {
+        if (step.key != null || (step.index != ANY_INDEX && step.index != level.index)) {
+          return false;
+        }
+      } else if (step.key == null || !step.key.equals(level.key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBare(byte b) {
+    return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+        || b == '-' || b == '+' || b == '.';
+  }
+
+  private IOException badJson(byte b) {
+    return new IOException("Bad JSON at byte " + offset + ": unexpected '" + (char) (b & 0xff)
+        + "'");
+  }
+
+  private void copy(byte b) throws IOException {
+    if (matchDepth != -1) {
+      append(b);
+    }
+  }
+
+  private void append(byte b) throws IOException {
+    if (bufCount == buf.length) {
+      flushBuffer();
+    }
+    buf[bufCount++] = b;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (bufCount > 0) {
+      out.write(buf, 0, bufCount);
+      bufCount = 0;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+/**
+ * Implemented by request body streams that know up front how many bytes
+ * they hold, so that the body can be sent with a Content-Length rather than
+ * chunked.
+ */
+public interface KnownLength {
+  /**
+   * @return The number of bytes the stream will produce, or -1 if that isn't
+   *     known after all.
+   */
+  long getLength();
+}
@@ -0,0 +1,121 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+/**
+ * Fixed-size histogram of latencies in microseconds, in the style of
+ * HdrHistogram: values below 2048 get their own bucket, and above that each
+ * power of two is split into 1024 buckets, so every value is kept to about
+ * three significant digits. Values over an hour are counted as an hour.
+ * <p>
+ * Recording never allocates. Not thread-safe; give each thread its own and
+ * {@link #add} them together at the end.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 11;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+  public static final long MAX_VALUE = 60L * 60 * 1000 * 1000;
+
+  private final long[] counts = new long[indexOf(MAX_VALUE) + 1];
+  private long totalCount;
+  private long totalValue;
+  private long minValue = Long.MAX_VALUE;
+  private long maxValue;
+
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    } else if (micros > MAX_VALUE) {
+      micros = MAX_VALUE;
+    }
+
+    counts[indexOf(micros)]++;
+    totalCount++;
+    totalValue += micros;
+    minValue = Math.min(minValue, micros);
+    maxValue = Math.max(maxValue, micros);
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    totalValue += other.totalValue;
+    minValue = Math.min(minValue, other.minValue);
+    maxValue = Math.max(maxValue, other.maxValue);
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMin() {
+    return totalCount == 0 ? 0 : minValue;
+  }
+
+  public long getMax() {
+    return maxValue;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+  }
+
+  /**
+   * Returns the value that the given percent of recorded values are at or
+   * below, to within the histogram's precision.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValueAt(i), maxValue);
+      }
+    }
+
+    return maxValue;
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+
+    // Keep the top SUB_BUCKET_BITS bits of the value, and use how far we had
+    // to shift to get them to pick the bucket.
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+  }
+
+  private static long highestValueAt(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
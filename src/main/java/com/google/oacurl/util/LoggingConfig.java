@@ -15,12 +15,11 @@
 package com.google.oacurl.util;
 
 import java.io.IOException;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Formatter;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import com.google.oacurl.options.CommonOptions;
+
 /**
  * @author phopkins
  *
@@ -38,40 +37,18 @@ public class LoggingConfig {
     }
   }
 
-  public static void enableWireLog() {
-    // For clarity, override the formatter so that it doesn't print the
-    // date and method name for each line, and then munge the output a little
-    // bit to make it nicer and more curl-like.
-    Formatter wireFormatter = new Formatter() {
-      @Override
-      public String format(LogRecord record) {
-        String message = record.getMessage();
-        String trimmedMessage = message.substring(">> \"".length(), message.length() - 1);
-        if (trimmedMessage.matches("[0-9a-f]+\\[EOL\\]")) {
-          return "";
-        }
-
-        trimmedMessage = trimmedMessage.replace("[EOL]", "");
-        if (trimmedMessage.isEmpty()) {
-          return "";
-        }
-
-        StringBuilder out = new StringBuilder();
-        out.append(message.charAt(0));
-        out.append(" ");
-        out.append(trimmedMessage);
-        out.append(System.getProperty("line.separator"));
-        return out.toString();
-      }
-    };
-
-    ConsoleHandler wireHandler = new ConsoleHandler();
-    wireHandler.setLevel(Level.FINE);
-    wireHandler.setFormatter(wireFormatter);
+  /**
+   * Starts the wire log, if it's wanted.
+   *
+   * @param show Whether to show it on stderr. The wire log is also started,
+   *     without being shown, if the options ask for a capture file.
+   */
+  public static void enableWireLog(boolean show, CommonOptions options) throws IOException {
+    if (!show && options.getWireCaptureFile() == null) {
+      return;
+    }
 
-    Logger wireLogger = Logger.getLogger("org.apache.http.wire");
-    wireLogger.setLevel(Level.FINE);
-    wireLogger.setUseParentHandlers(false);
-    wireLogger.addHandler(wireHandler);
+    WireLog.start(show ? System.err : null, options.getWireCaptureFile(),
+        options.getWireBodyLimit());
   }
 }
@@ -14,130 +14,279 @@
 
 package com.google.oacurl.util;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringBufferInputStream;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Wrapper around separate {@link InputStream}s to make a stream of several
- * files for a multipart/related form post.
+ * Stream of several files as a multipart/related form post.
  * <p>
- * We're using the deprecated {@link StringBufferInputStream} because we're ok
- * with the boundary and content type being all ASCII.
+ * The boundaries and headers are all ASCII, and are laid out up front, so
+ * the total length is known as long as the files are regular files. Files
+ * are opened one at a time as the stream gets to them and read through
+ * their {@link FileChannel} straight into the caller's buffer. While one
+ * file is being sent, the start of the next is read in the background, so
+ * that going from part to part doesn't stall on the disk.
  *
  * @author phopkins@google.com
  */
-@SuppressWarnings("deprecation")
-public class MultipartRelatedInputStream extends InputStream {
+public class MultipartRelatedInputStream extends InputStream implements KnownLength {
   public static final String BOUNDARY = "END_OF_PART";
 
-  private final LinkedList<InputStream> streams;
+  private static final int PREFETCH_SIZE = 256 * 1024;
+
+  private static ExecutorService prefetcher;
+
+  /** Each part is either a byte[] of literal text or a File to send. */
+  private final List<Object> parts = new ArrayList<Object>();
+  private final long length;
+
+  private int partIndex = -1;
+  private byte[] buffer;
+  private int bufferPos;
+  private FileInputStream fileStream;
+  private FileChannel channel;
+
+  private Future<OpenedFile> prefetch;
+  private int prefetchIndex = -1;
 
   public MultipartRelatedInputStream(List<Entry<String, String>> related) throws IOException {
-    this.streams = new LinkedList<InputStream>();
+    StringBuilder text = new StringBuilder();
+    long length = 0;
+    boolean lengthKnown = true;
 
-    pushCommentStream();
+    text.append("Media multipart posting\n");
 
     for (Map.Entry<String, String> part : related) {
-      pushBoundaryStream();
-      pushHeaderStream("Content-Type", part.getValue());
-      pushNewlineStream();
-      pushFileStream(part.getKey());
-      pushNewlineStream();
-    }
+      text.append("--").append(BOUNDARY).append("\n");
+      text.append("Content-Type: ").append(part.getValue()).append("\n");
+      text.append("\n");
 
-    pushEndBoundaryStream();
-  }
+      File file = new File(part.getKey());
+      if (!file.exists()) {
+        throw new FileNotFoundException(part.getKey() + " (No such file or directory)");
+      }
 
-  private void pushCommentStream() {
-    streams.add(new StringBufferInputStream("Media multipart posting\n"));
-  }
+      length += addText(text);
+      parts.add(file);
+      length += file.length();
+      lengthKnown &= file.isFile();
 
-  private void pushBoundaryStream() {
-    streams.add(new StringBufferInputStream("--" + BOUNDARY + "\n"));
-  }
+      text.append("\n");
+    }
 
-  private void pushEndBoundaryStream() {
-    streams.add(new StringBufferInputStream("--" + BOUNDARY + "--\n"));
-  }
+    text.append("--").append(BOUNDARY).append("--\n");
+    length += addText(text);
 
-  private void pushHeaderStream(String name, String value) {
-    streams.add(new StringBufferInputStream(name + ": " + value + "\n"));
+    this.length = lengthKnown ? length : -1;
   }
 
-  private void pushNewlineStream() {
-    streams.add(new StringBufferInputStream("\n"));
+  private int addText(StringBuilder text) throws IOException {
+    byte[] bytes = text.toString().getBytes("US-ASCII");
+    parts.add(bytes);
+    text.setLength(0);
+    return bytes.length;
   }
 
-  private void pushFileStream(String fileName) throws FileNotFoundException {
-    streams.add(new FileInputStream(fileName));
+  public long getLength() {
+    return length;
   }
-  
+
   @Override
   public int read() throws IOException {
-    if (streams.isEmpty()) {
-      return -1;
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    return (count == -1) ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
     }
 
-    InputStream stream = streams.getFirst();
-    int ret = stream.read();
+    while (true) {
+      if (buffer != null && bufferPos < buffer.length) {
+        int count = Math.min(len, buffer.length - bufferPos);
+        System.arraycopy(buffer, bufferPos, b, off, count);
+        bufferPos += count;
+        return count;
+      }
 
-    if (ret == -1) {
-      stream.close();
-      streams.removeFirst();
-      if (streams.isEmpty()) {
-        return ret;
-      } else {
-        return read();
+      if (channel != null) {
+        int count = channel.read(ByteBuffer.wrap(b, off, len));
+        if (count > 0) {
+          return count;
+        }
+      }
+
+      if (!nextPart()) {
+        return -1;
       }
-    } else {
-      return ret;
     }
   }
 
   @Override
   public int available() throws IOException {
-    if (streams.isEmpty()) {
-      return 0;
+    long available = (buffer != null) ? buffer.length - bufferPos : 0;
+    if (channel != null) {
+      available += Math.max(0, channel.size() - channel.position());
+    }
+    return (int) Math.min(available, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Moves on to the next part, if there is one.
+   */
+  private boolean nextPart() throws IOException {
+    closeFile();
+    buffer = null;
+    bufferPos = 0;
+
+    if (partIndex + 1 >= parts.size()) {
+      return false;
     }
 
-    return streams.getFirst().available();
+    partIndex++;
+    Object part = parts.get(partIndex);
+    if (part instanceof byte[]) {
+      buffer = (byte[]) part;
+      return true;
+    }
+
+    OpenedFile opened;
+    if (prefetch != null && prefetchIndex == partIndex) {
+      opened = getPrefetched();
+    } else {
+      opened = OpenedFile.open((File) part);
+    }
+    fileStream = opened.stream;
+    channel = fileStream.getChannel();
+    buffer = opened.head;
+
+    startPrefetch();
+    return true;
   }
 
-  @Override
-  public int read(byte[] b, int off, int len) throws IOException {
-    if (streams.isEmpty()) {
-      return -1;
+  /**
+   * Starts reading the next file after the current part, if any.
+   */
+  private void startPrefetch() {
+    for (int i = partIndex + 1; i < parts.size(); i++) {
+      if (parts.get(i) instanceof File) {
+        final File file = (File) parts.get(i);
+        prefetchIndex = i;
+        prefetch = getPrefetcher().submit(new Callable<OpenedFile>() {
+          public OpenedFile call() throws IOException {
+            return OpenedFile.open(file);
+          }
+        });
+        return;
+      }
     }
+  }
 
-    InputStream stream = streams.getFirst();
-    int ret = stream.read(b, off, len);
+  private OpenedFile getPrefetched() throws IOException {
+    Future<OpenedFile> future = prefetch;
+    prefetch = null;
 
-    if (ret == -1) {
-      stream.close();
-      streams.removeFirst();
-      if (streams.isEmpty()) {
-        return ret;
-      } else {
-        return read(b, off, len);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted opening " + parts.get(prefetchIndex));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
       }
-    } else {
-      return ret;
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private void closeFile() throws IOException {
+    if (fileStream != null) {
+      fileStream.close();
+      fileStream = null;
+      channel = null;
     }
   }
 
   @Override
   public void close() throws IOException {
-    for (InputStream stream : streams) {
-      stream.close();
+    closeFile();
+    buffer = null;
+    partIndex = parts.size();
+
+    // Wait for, rather than abandon, any read-ahead so its file gets closed.
+    if (prefetch != null) {
+      try {
+        getPrefetched().stream.close();
+      } catch (IOException e) {
+        // Nothing useful to do here.
+      }
     }
+  }
+
+  private static synchronized ExecutorService getPrefetcher() {
+    if (prefetcher == null) {
+      prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "multipart-prefetch");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return prefetcher;
+  }
+
+  /**
+   * An open file with its first bytes already read.
+   */
+  private static class OpenedFile {
+    private final FileInputStream stream;
+    private final byte[] head;
 
-    streams.clear();
+    private OpenedFile(FileInputStream stream, byte[] head) {
+      this.stream = stream;
+      this.head = head;
+    }
+
+    public static OpenedFile open(File file) throws IOException {
+      FileInputStream stream = new FileInputStream(file);
+      try {
+        byte[] head = new byte[(int) Math.min(PREFETCH_SIZE, file.length())];
+        int filled = 0;
+        int count;
+        while (filled < head.length
+            && (count = stream.read(head, filled, head.length - filled)) > -1) {
+          filled += count;
+        }
+
+        if (filled < head.length) {
+          byte[] shorter = new byte[filled];
+          System.arraycopy(head, 0, shorter, 0, filled);
+          head = shorter;
+        }
+
+        return new OpenedFile(stream, head);
+      } catch (IOException e) {
+        stream.close();
+        throw e;
+      }
+    }
   }
 }
@@ -14,6 +14,8 @@
 
 package com.google.oacurl.util;
 
+import java.io.PrintStream;
+
 import net.oauth.OAuthProblemException;
 import net.oauth.http.HttpMessage;
 
@@ -29,15 +31,23 @@ public class OAuthUtil {
    * message.
    */
   public static void printOAuthProblemException(OAuthProblemException e) {
+    printOAuthProblemException(e, System.err);
+  }
+
+  /**
+   * Like {@link #printOAuthProblemException(OAuthProblemException)}, but
+   * prints to the given stream rather than stderr.
+   */
+  public static void printOAuthProblemException(OAuthProblemException e, PrintStream err) {
     if (e.getProblem() != null) {
-      System.err.println(e.getProblem());
+      err.println(e.getProblem());
     }
 
     Object response = e.getParameters().get(HttpMessage.RESPONSE);
     if (response != null) {
-      System.err.println(response);
+      err.println(response);
     }
 
-    e.printStackTrace();
+    e.printStackTrace(err);
   }
 }
@@ -20,19 +20,42 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
  * Guice-ish wrapper around properties. Mostly convenience for property file
  * I/O and getting empty {@link Property} objects from null file names.
+ * <p>
+ * Several processes can share a file safely. Writes go to a temporary file
+ * that is then renamed over the real one, so a reader sees either the old
+ * file or the new one, never part of one. Writers take a lock on a
+ * "FILE.lock" file first, so that {@link #update} never loses another
+ * process's change. Parsed files are cached for the life of the process and
+ * only read again when their size or modification time changes.
  *
  * @author phopkins@google.com
  */
 public class PropertiesProvider {
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final Map<String, CachedFile> cache = new HashMap<String, CachedFile>();
+
   private final File file;
   private final InputStream inputStream;
   private Properties properties;
 
+  /**
+   * Changes to make to a file's properties, under its lock.
+   */
+  public interface Update {
+    void apply(Properties properties);
+  }
+
   /**
    * @param fileName file name to load, may be null for empty
    *     {@link Properties}.
@@ -57,10 +80,10 @@ public class PropertiesProvider {
       this.file = null;
       this.inputStream = null;
     } else {
-      File namedFile = new File(fileName);
+      File namedFile = new File(fileName).getAbsoluteFile();
       if (namedFile.exists()) {
         this.file = namedFile;
-        this.inputStream = new FileInputStream(this.file);
+        this.inputStream = null;
       } else {
         if (resourceClass != null && resourcePrefix != null) {
           this.file = null;
@@ -75,29 +98,183 @@ public class PropertiesProvider {
     }
   }
 
+  /**
+   * Returns the properties, which the caller is free to change.
+   */
   public Properties get() throws IOException {
     if (properties == null) {
-      properties = new Properties();
+      if (file != null) {
+        properties = copy(read(file, true));
+      } else {
+        properties = new Properties();
 
-      if (inputStream != null) {
-        properties.load(inputStream);
-        inputStream.close();
+        if (inputStream != null) {
+          properties.load(inputStream);
+          inputStream.close();
+        }
       }
     }
 
     return properties;
   }
 
-  public void overwrite(Properties properties) throws IOException {
+  public void overwrite(final Properties properties) throws IOException {
+    update(new Update() {
+      public void apply(Properties current) {
+        current.clear();
+        current.putAll(properties);
+      }
+    });
+  }
+
+  /**
+   * Applies the update to the file's current properties and saves them, with
+   * no other process able to change the file in between.
+   */
+  public void update(Update update) throws IOException {
     if (file == null) {
       throw new IllegalStateException("Trying to save properties to null file");
     }
 
-    file.setWritable(true, true);
-    FileOutputStream out = new FileOutputStream(file);
-    properties.store(out, null);
-    out.close();
+    Properties updated;
+
+    // File locks are held by the whole process, so threads take turns first.
+    synchronized (getCachedFile(file)) {
+      RandomAccessFile lockAccess = new RandomAccessFile(file.getPath() + LOCK_SUFFIX, "rw");
+      try {
+        FileLock lock = lockAccess.getChannel().lock();
+        try {
+          // Not from the cache: another process may have made a change of
+          // the same size within the file system's mtime granularity.
+          updated = copy(read(file, false));
+          update.apply(updated);
+          write(file, updated);
+        } finally {
+          lock.release();
+        }
+      } finally {
+        lockAccess.close();
+      }
+    }
+
+    this.properties = updated;
+  }
+
+  /**
+   * Deletes the file along with its lock file and any temporary file left by
+   * an interrupted write. Only for files no other process is still using.
+   */
+  public void delete() {
+    if (file == null) {
+      throw new IllegalStateException("Trying to delete null file");
+    }
+
+    synchronized (getCachedFile(file)) {
+      file.delete();
+      new File(file.getPath() + TEMP_SUFFIX).delete();
+      new File(file.getPath() + LOCK_SUFFIX).delete();
+    }
+    this.properties = null;
+  }
+
+  private static CachedFile getCachedFile(File file) {
+    synchronized (cache) {
+      CachedFile cached = cache.get(file.getPath());
+      if (cached == null) {
+        cached = new CachedFile();
+        cache.put(file.getPath(), cached);
+      }
+      return cached;
+    }
+  }
+
+  /**
+   * Returns the file's properties. The result is shared and mustn't be
+   * changed.
+   *
+   * @param fromCache Whether the cached copy will do if the file's size and
+   *     modification time haven't changed.
+   */
+  private static Properties read(File file, boolean fromCache) throws IOException {
+    CachedFile cached = getCachedFile(file);
+
+    // Looked at before reading, so that if the file is replaced while we
+    // read it, the next call sees a change and reads it again.
+    long modified = file.lastModified();
+    long length = file.length();
+
+    synchronized (cached) {
+      if (fromCache && cached.properties != null && cached.modified == modified
+          && cached.length == length) {
+        return cached.properties;
+      }
+    }
+
+    Properties properties = new Properties();
+    if (modified != 0) {
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (FileNotFoundException e) {
+        // Gone since we looked, which is the same as not being there.
+      }
+    }
 
-    this.properties = properties;
+    synchronized (cached) {
+      cached.properties = properties;
+      cached.modified = modified;
+      cached.length = length;
+    }
+    return properties;
+  }
+
+  private static void write(File file, Properties properties) throws IOException {
+    File temp = new File(file.getPath() + TEMP_SUFFIX);
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      // These are mostly tokens and secrets, so the file is the user's alone.
+      temp.setReadable(false, false);
+      temp.setReadable(true, true);
+      temp.setWritable(true, true);
+
+      properties.store(out, null);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      // Some platforms won't rename over an existing file.
+      file.delete();
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not replace " + file + " with " + temp);
+      }
+    }
+
+    CachedFile cached = getCachedFile(file);
+    synchronized (cached) {
+      cached.properties = copy(properties);
+      cached.modified = file.lastModified();
+      cached.length = file.length();
+    }
+  }
+
+  private static Properties copy(Properties properties) {
+    Properties copy = new Properties();
+    copy.putAll(properties);
+    return copy;
+  }
+
+  /**
+   * A file's properties as of when it had a certain size and timestamp.
+   */
+  private static class CachedFile {
+    private Properties properties;
+    private long modified;
+    private long length;
   }
 }
@@ -0,0 +1,185 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces requests to a host made with one consumer key, so as to stay within
+ * the provider's quota for that key.
+ * <p>
+ * This is a token bucket: it holds up to "burst" requests' worth of tokens,
+ * refilled at the given rate, and each request takes one, waiting for it if
+ * the bucket is empty. A request that has to wait takes its token on credit,
+ * so that waiters go in the order they arrived.
+ * <p>
+ * The bucket is kept in a small file under ~/.oacurl-rates, locked while
+ * it's read and updated, so every oacurl process on the machine draws on the
+ * same one. If that file can't be used, the bucket is shared only within
+ * this process.
+ */
+public class RateLimiter {
+  private static final String STATE_DIR_NAME = ".oacurl-rates";
+
+  private static Logger logger = Logger.getLogger(RateLimiter.class.getName());
+
+  private static final Map<String, RateLimiter> limiters = new HashMap<String, RateLimiter>();
+
+  private final String key;
+  private final double perSecond;
+  private final double burst;
+
+  /** The shared state, or null to keep it here. */
+  private File stateFile;
+
+  // Guarded by this, when there's no state file.
+  private double tokens;
+  private long updatedMillis;
+
+  private RateLimiter(String key, double perSecond, double burst, File stateFile) {
+    this.key = key;
+    this.perSecond = perSecond;
+    this.burst = burst;
+    this.stateFile = stateFile;
+    this.tokens = burst;
+    this.updatedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the process's limiter for requests to the host with the consumer
+   * key. The rate and burst are taken from the first call for each.
+   *
+   * @param perSecond Requests allowed per second, on average.
+   * @param burst Most requests allowed at once after a quiet spell. At
+   *     least 1.
+   */
+  public static RateLimiter get(String host, String consumerKey, double perSecond,
+      double burst) {
+    String key = host.toLowerCase(Locale.US) + " " + consumerKey;
+    synchronized (limiters) {
+      RateLimiter limiter = limiters.get(key);
+      if (limiter == null) {
+        File stateDir = new File(System.getProperty("user.home"), STATE_DIR_NAME);
+        stateDir.mkdirs();
+        limiter = new RateLimiter(key, perSecond, Math.max(1, burst),
+            new File(stateDir, toFileName(host, consumerKey)));
+        limiters.put(key, limiter);
+      }
+      return limiter;
+    }
+  }
+
+  /**
+   * Waits until a request may be made, and counts it.
+   */
+  public void acquire() throws IOException {
+    long waitMillis;
+
+    // File locks are held by the whole process, so threads take turns first.
+    synchronized (this) {
+      double remaining;
+      if (stateFile != null) {
+        try {
+          remaining = takeShared();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Can't share rate limit for " + key + " through "
+              + stateFile + "; limiting this process only", e);
+          stateFile = null;
+          remaining = take();
+        }
+      } else {
+        remaining = take();
+      }
+
+      waitMillis = (remaining < 0) ? (long) Math.ceil(-remaining / perSecond * 1000) : 0;
+    }
+
+    if (waitMillis > 0) {
+      logger.log(Level.INFO, "Waiting " + waitMillis + " ms for rate limit on " + key);
+      try {
+        Thread.sleep(waitMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+  }
+
+  private double take() {
+    long now = System.currentTimeMillis();
+    tokens = refill(tokens, updatedMillis, now) - 1;
+    updatedMillis = now;
+    return tokens;
+  }
+
+  /**
+   * Takes a token from the bucket in the state file: a double of tokens and
+   * a long of when they were counted, or nothing for a full bucket.
+   */
+  private double takeShared() throws IOException {
+    RandomAccessFile access = new RandomAccessFile(stateFile, "rw");
+    try {
+      FileLock lock = access.getChannel().lock();
+      try {
+        long now = System.currentTimeMillis();
+        double current;
+        if (access.length() >= 16) {
+          double savedTokens = access.readDouble();
+          long savedMillis = access.readLong();
+          current = refill(savedTokens, savedMillis, now);
+        } else {
+          current = burst;
+        }
+
+        current -= 1;
+        access.seek(0);
+        access.writeDouble(current);
+        access.writeLong(now);
+        return current;
+      } finally {
+        lock.release();
+      }
+    } finally {
+      access.close();
+    }
+  }
+
+  private double refill(double tokens, long sinceMillis, long now) {
+    // Clocks can go backwards; don't count that against anyone.
+    long elapsed = Math.max(0, now - sinceMillis);
+    return Math.min(burst, tokens + elapsed / 1000.0 * perSecond);
+  }
+
+  /**
+   * Makes a file name safe on any file system, keeping it readable where the
+   * key allows and unique where it doesn't.
+   */
+  private static String toFileName(String host, String consumerKey) {
+    String raw = host.toLowerCase(Locale.US) + "_" + consumerKey;
+    String safe = raw.replaceAll("[^A-Za-z0-9._-]", "_");
+    if (safe.length() > 64) {
+      safe = safe.substring(0, 64);
+    }
+    return safe + "-" + Integer.toHexString(raw.hashCode());
+  }
+}
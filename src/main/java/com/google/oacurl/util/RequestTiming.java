@@ -0,0 +1,417 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.json.simple.JSONValue;
+
+/**
+ * Where the time went in one request, in the manner of curl's --write-out.
+ * <p>
+ * A timing is started on the thread making the request, and the phases are
+ * marked as that thread passes through them: signing in {@code Fetch}, and
+ * the name lookup, connect and TLS handshake in the socket factories that
+ * {@link #install} puts in the HttpClient 4 pool. Times are seconds from the
+ * start, so each includes the ones before it. A phase that didn't happen
+ * (e.g. connecting, on a reused connection) gets the time of the one before.
+ */
+public class RequestTiming {
+  /** The template for --timing. */
+  public static final String DEFAULT_TEMPLATE =
+      "          sign: %{time_sign}s\n"
+      + "    namelookup: %{time_namelookup}s\n"
+      + "       connect: %{time_connect}s\n"
+      + "    appconnect: %{time_appconnect}s\n"
+      + "   pretransfer: %{time_pretransfer}s\n"
+      + " starttransfer: %{time_starttransfer}s\n"
+      + "         total: %{time_total}s\n"
+      + "   size_upload: %{size_upload} bytes\n"
+      + " size_download: %{size_download} bytes at %{speed_download} bytes/s\n";
+
+  /** The --write-out value that prints every variable as a JSON object. */
+  public static final String JSON = "json";
+
+  public static final List<String> VARIABLES = Collections.unmodifiableList(Arrays.asList(
+      "time_sign", "time_namelookup", "time_connect", "time_appconnect", "time_pretransfer",
+      "time_starttransfer", "time_total", "size_upload", "size_download", "speed_download",
+      "http_code", "num_connects", "url_effective"));
+
+  private static final Pattern VARIABLE_PATTERN = Pattern.compile("%\\{([a-z_]+)\\}");
+
+  private static final ThreadLocal<RequestTiming> current = new ThreadLocal<RequestTiming>();
+
+  private final String url;
+  private final long startNanos = System.nanoTime();
+
+  // Nanos since the start, or -1 if the phase hasn't happened.
+  private long signNanos = -1;
+  private long namelookupNanos = -1;
+  private long connectNanos = -1;
+  private long appconnectNanos = -1;
+  private long pretransferNanos = -1;
+  private long starttransferNanos = -1;
+  private long totalNanos = -1;
+
+  private long uploadBytes;
+  private long downloadBytes;
+  private int statusCode;
+  private int connects;
+
+  private RequestTiming(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Starts timing requests made by this thread, until {@link #finish}.
+   */
+  public static RequestTiming start(String url) {
+    RequestTiming timing = new RequestTiming(url);
+    current.set(timing);
+    return timing;
+  }
+
+  /**
+   * Returns the timing for requests this thread is making, or null if they
+   * aren't being timed.
+   */
+  public static RequestTiming current() {
+    return current.get();
+  }
+
+  /**
+   * Stops timing, marking the total time if it isn't already.
+   */
+  public void finish() {
+    if (totalNanos < 0) {
+      totalNanos = elapsed();
+    }
+    if (current.get() == this) {
+      current.remove();
+    }
+  }
+
+  public void markSigned() {
+    signNanos = elapsed();
+  }
+
+  public void markStartTransfer() {
+    starttransferNanos = elapsed();
+  }
+
+  public void setStatusCode(int statusCode) {
+    this.statusCode = statusCode;
+  }
+
+  public void addDownloadBytes(long bytes) {
+    downloadBytes += bytes;
+  }
+
+  /**
+   * Wraps a request body so that the bytes sent from it are counted. The
+   * wrapper keeps the body's {@link KnownLength}, if it has one.
+   */
+  public InputStream countUpload(InputStream body) {
+    return new UploadCounter(body);
+  }
+
+  /**
+   * Fills in the template's %{variable}s and \n and \t escapes, or with a
+   * template of {@link #JSON} returns all the variables as a JSON object.
+   */
+  public String format(String template) {
+    Map<String, Object> values = getValues();
+    if (template.equals(JSON)) {
+      return JSONValue.toJSONString(values) + "\n";
+    }
+
+    Matcher matcher = VARIABLE_PATTERN.matcher(unescape(template));
+    StringBuffer out = new StringBuffer();
+    while (matcher.find()) {
+      Object value = values.get(matcher.group(1));
+      String text;
+      if (value instanceof Double) {
+        text = String.format(Locale.US, "%.6f", value);
+      } else {
+        text = (value != null) ? value.toString() : matcher.group();
+      }
+      matcher.appendReplacement(out, Matcher.quoteReplacement(text));
+    }
+    matcher.appendTail(out);
+    return out.toString();
+  }
+
+  /**
+   * @return The first variable in the template that we don't know, or null
+   *     if they're all good.
+   */
+  public static String findUnknownVariable(String template) {
+    if (template.equals(JSON)) {
+      return null;
+    }
+
+    Matcher matcher = VARIABLE_PATTERN.matcher(template);
+    while (matcher.find()) {
+      if (!VARIABLES.contains(matcher.group(1))) {
+        return matcher.group(1);
+      }
+    }
+    return null;
+  }
+
+  private Map<String, Object> getValues() {
+    long total = (totalNanos >= 0) ? totalNanos : elapsed();
+
+    // Phases that were skipped take the time of the one before.
+    long sign = Math.max(signNanos, 0);
+    long namelookup = Math.max(namelookupNanos, sign);
+    long connect = Math.max(connectNanos, namelookup);
+    long appconnect = Math.max(appconnectNanos, connect);
+    long pretransfer = Math.max(pretransferNanos, appconnect);
+    long starttransfer = Math.max(starttransferNanos, pretransfer);
+
+    double transferSeconds = (total - starttransfer) / 1e9;
+    long speed = (transferSeconds > 0) ? (long) (downloadBytes / transferSeconds) : 0;
+
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("time_sign", seconds(sign));
+    values.put("time_namelookup", seconds(namelookup));
+    values.put("time_connect", seconds(connect));
+    values.put("time_appconnect", seconds(appconnect));
+    values.put("time_pretransfer", seconds(pretransfer));
+    values.put("time_starttransfer", seconds(starttransfer));
+    values.put("time_total", seconds(total));
+    values.put("size_upload", uploadBytes);
+    values.put("size_download", downloadBytes);
+    values.put("speed_download", speed);
+    values.put("http_code", statusCode);
+    values.put("num_connects", connects);
+    values.put("url_effective", url);
+    return values;
+  }
+
+  private static Double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static String unescape(String template) {
+    return template.replace("\\n", "\n").replace("\\t", "\t").replace("\\r", "\r");
+  }
+
+  private long elapsed() {
+    return System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Has the pool's connections report their name lookups, connects and
+   * handshakes, and requests their sending, to the timing of the thread
+   * making them.
+   */
+  public static void install(AbstractHttpClient client, SchemeRegistry schemeRegistry) {
+    Scheme http = schemeRegistry.getScheme("http");
+    if (http.getSocketFactory() instanceof PlainSocketFactory) {
+      schemeRegistry.register(new Scheme("http",
+          new TimingSocketFactory((PlainSocketFactory) http.getSocketFactory()),
+          http.getDefaultPort()));
+    }
+
+    Scheme https = schemeRegistry.getScheme("https");
+    if (https.getSocketFactory() instanceof SSLSocketFactory) {
+      schemeRegistry.register(new Scheme("https",
+          new TimingSslSocketFactory((SSLSocketFactory) https.getSocketFactory()),
+          https.getDefaultPort()));
+    }
+
+    client.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(HttpRequest request, HttpContext context) {
+        RequestTiming timing = current();
+        if (timing != null) {
+          timing.pretransferNanos = timing.elapsed();
+        }
+      }
+    });
+  }
+
+  /**
+   * Plain HTTP connections. Untimed threads go straight to the usual factory.
+   */
+  private static class TimingSocketFactory implements SocketFactory {
+    private final PlainSocketFactory delegate;
+
+    public TimingSocketFactory(PlainSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    public Socket createSocket() throws IOException {
+      return delegate.createSocket();
+    }
+
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+        int localPort, HttpParams params)
+        throws IOException, UnknownHostException, ConnectTimeoutException {
+      RequestTiming timing = current();
+      if (timing == null) {
+        return delegate.connectSocket(sock, host, port, localAddress, localPort, params);
+      }
+
+      // Resolve first, so that the connect is timed on its own.
+      timing.connects++;
+      InetAddress address = InetAddress.getByName(host);
+      timing.namelookupNanos = timing.elapsed();
+
+      Socket connected = delegate.connectSocket(sock, address.getHostAddress(), port,
+          localAddress, localPort, params);
+      timing.connectNanos = timing.elapsed();
+      return connected;
+    }
+
+    public boolean isSecure(Socket sock) {
+      return delegate.isSecure(sock);
+    }
+  }
+
+  /**
+   * HTTPS connections. For timed threads, resolves, connects and shakes hands
+   * as separate steps, rather than the usual factory doing them all at once,
+   * then checks the host name just as it would.
+   */
+  private static class TimingSslSocketFactory implements LayeredSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    public TimingSslSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    public Socket createSocket() throws IOException {
+      return delegate.createSocket();
+    }
+
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+        int localPort, HttpParams params)
+        throws IOException, UnknownHostException, ConnectTimeoutException {
+      RequestTiming timing = current();
+      if (timing == null || !(sock instanceof SSLSocket)) {
+        return delegate.connectSocket(sock, host, port, localAddress, localPort, params);
+      }
+
+      SSLSocket sslSocket = (SSLSocket) sock;
+      if (localAddress != null || localPort > 0) {
+        sslSocket.bind(new InetSocketAddress(localAddress, Math.max(localPort, 0)));
+      }
+
+      timing.connects++;
+      InetAddress address = InetAddress.getByName(host);
+      timing.namelookupNanos = timing.elapsed();
+
+      // Keep the host name with the address, for SNI.
+      InetSocketAddress remote = new InetSocketAddress(
+          InetAddress.getByAddress(host, address.getAddress()), port);
+      try {
+        sslSocket.connect(remote, HttpConnectionParams.getConnectionTimeout(params));
+      } catch (SocketTimeoutException e) {
+        throw new ConnectTimeoutException("Connect to " + remote + " timed out");
+      }
+      timing.connectNanos = timing.elapsed();
+
+      sslSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+      sslSocket.startHandshake();
+      timing.appconnectNanos = timing.elapsed();
+
+      try {
+        delegate.getHostnameVerifier().verify(host, sslSocket);
+      } catch (IOException e) {
+        try {
+          sslSocket.close();
+        } catch (IOException closeException) {
+          // Reporting the verification failure matters more.
+        }
+        throw e;
+      }
+      return sslSocket;
+    }
+
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+        throws IOException, UnknownHostException {
+      Socket secure = delegate.createSocket(socket, host, port, autoClose);
+      RequestTiming timing = current();
+      if (timing != null) {
+        timing.appconnectNanos = timing.elapsed();
+      }
+      return secure;
+    }
+
+    public boolean isSecure(Socket sock) {
+      return delegate.isSecure(sock);
+    }
+  }
+
+  private class UploadCounter extends FilterInputStream implements KnownLength {
+    public UploadCounter(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        uploadBytes++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count > 0) {
+        uploadBytes += count;
+      }
+      return count;
+    }
+
+    public long getLength() {
+      return (in instanceof KnownLength) ? ((KnownLength) in).getLength() : -1;
+    }
+  }
+}
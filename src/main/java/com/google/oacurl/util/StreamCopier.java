@@ -0,0 +1,128 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies response bodies to their destination in as few, large writes as
+ * the incoming data allows.
+ */
+public class StreamCopier {
+  public static final int MIN_BUFFER_SIZE = 8 * 1024;
+  public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Copies all of {@code in} to {@code out}.
+   * <p>
+   * Reads are gathered into one buffer for as long as the input says it has
+   * more ready, so data that has already arrived goes out in one big write
+   * while a slow source still streams through promptly. The buffer doubles
+   * each time it fills, up to {@link #MAX_BUFFER_SIZE}. Writes block while
+   * {@code out} is full (e.g. a slow pipe), and a failed write stops the copy
+   * rather than reading the rest of the body for nothing.
+   *
+   * @return The number of bytes copied.
+   */
+  public static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buf = new byte[MIN_BUFFER_SIZE];
+    long total = 0;
+
+    while (true) {
+      int filled = 0;
+      int count = 0;
+      while (filled < buf.length && (count = in.read(buf, filled, buf.length - filled)) > -1) {
+        filled += count;
+        if (in.available() <= 0) {
+          break;
+        }
+      }
+
+      if (filled > 0) {
+        out.write(buf, 0, filled);
+        total += filled;
+      }
+
+      if (count == -1) {
+        return total;
+      }
+
+      if (filled == buf.length && buf.length < MAX_BUFFER_SIZE) {
+        buf = new byte[buf.length * 2];
+      }
+    }
+  }
+
+  /**
+   * Copies all of {@code in} into the file at its current position, letting
+   * {@link FileChannel#transferFrom} move the bytes.
+   *
+   * @return The number of bytes copied.
+   */
+  public static long copy(InputStream in, FileChannel out) throws IOException {
+    ReadableByteChannel inChannel = Channels.newChannel(in);
+    long start = out.position();
+    long position = start;
+
+    // For a blocking source, transferFrom only returns 0 at end of stream.
+    long count;
+    while ((count = out.transferFrom(inChannel, position, MAX_BUFFER_SIZE)) > 0) {
+      position += count;
+    }
+
+    out.position(position);
+    return position - start;
+  }
+
+  /**
+   * Copies the rest of the file, from its current position, to {@code out},
+   * letting {@link FileChannel#transferTo} move the bytes. Where the OS can
+   * (sendfile on Linux, to a file, socket or pipe) they never come into the
+   * JVM at all.
+   *
+   * @return The number of bytes copied.
+   */
+  public static long copy(FileChannel in, WritableByteChannel out) throws IOException {
+    long start = in.position();
+    long end = in.size();
+    long position = start;
+
+    while (position < end) {
+      long count = in.transferTo(position, end - position, out);
+      if (count <= 0) {
+        break;
+      }
+      position += count;
+    }
+
+    in.position(position);
+    return position - start;
+  }
+
+  /**
+   * Describes a transfer for humans, e.g. "1048576 bytes in 0.50 s (2.00 MB/s)".
+   */
+  public static String describeRate(long bytes, long nanos) {
+    double seconds = Math.max(nanos, 1) / 1e9;
+    return String.format("%d bytes in %.2f s (%.2f MB/s)",
+        bytes, seconds, bytes / seconds / (1024 * 1024));
+  }
+}
@@ -0,0 +1,577 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.DefaultClientConnection;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.LoggingSessionInputBuffer;
+import org.apache.http.impl.conn.LoggingSessionOutputBuffer;
+import org.apache.http.impl.conn.Wire;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.io.SessionOutputBuffer;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Logs what goes over the wire without slowing it down.
+ * <p>
+ * Connections from {@link #newConnectionManager} copy the bytes they send
+ * and receive into a bounded queue, and a background thread does all the
+ * formatting and writing. If the writer falls behind while only displaying,
+ * records are dropped (and the drop noted) rather than the transfer waiting
+ * for it. With a capture file, the transfer waits instead, so that the
+ * capture is complete.
+ * <p>
+ * The display, for -v, is curl-like: header lines prefixed with "&gt;" or
+ * "&lt;", text bodies cut off after a limit, and binary bodies shown as a
+ * few bytes of hex.
+ * <p>
+ * The capture file has everything, bodies and all, byte for byte. After a
+ * "OACURL-WIRE 1" line, each record is a line of
+ * <pre>
+ *   millis connection direction length
+ * </pre>
+ * with direction "&gt;" for sent and "&lt;" for received, then that many bytes
+ * and a newline. Headers are plain text, so the file reads fine in a pager.
+ */
+public class WireLog {
+  public static final int DEFAULT_BODY_LIMIT = 1024;
+
+  /** How many bytes of a binary body to show as hex. */
+  private static final int HEX_BYTES = 32;
+
+  private static final int QUEUE_RECORDS = 16 * 1024;
+  private static final long QUEUE_BYTES = 16 * 1024 * 1024;
+
+  private static final String EOL = "[EOL]";
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private static volatile WireLog instance;
+
+  private final OutputStream display;
+  private final OutputStream capture;
+  private final int bodyLimit;
+
+  private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_RECORDS);
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicLong droppedRecords = new AtomicLong();
+  /** Room left in the queue, in bytes, when capturing. */
+  private final Semaphore captureRoom = new Semaphore((int) QUEUE_BYTES);
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private final Thread writer;
+
+  private WireLog(OutputStream display, OutputStream capture, int bodyLimit) {
+    this.display = display;
+    this.capture = capture;
+    this.bodyLimit = bodyLimit;
+
+    writer = new Thread(new Writer(), "WireLog");
+    writer.setDaemon(true);
+    writer.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread("WireLog flush") {
+      @Override
+      public void run() {
+        flush();
+      }
+    });
+  }
+
+  /**
+   * Starts logging connections made from now on.
+   *
+   * @param display Where to show the wire log, or null to not show it.
+   * @param captureFile File to capture everything to, or null for none.
+   * @param bodyLimit Most bytes of each body to show.
+   */
+  public static synchronized void start(OutputStream display, File captureFile, int bodyLimit)
+      throws IOException {
+    if (instance != null) {
+      return;
+    }
+
+    OutputStream capture = null;
+    if (captureFile != null) {
+      capture = new BufferedOutputStream(new FileOutputStream(captureFile), 64 * 1024);
+      capture.write("OACURL-WIRE 1\n".getBytes("US-ASCII"));
+    }
+    instance = new WireLog(
+        (display != null) ? new BufferedOutputStream(display, 16 * 1024) : null,
+        capture, bodyLimit);
+  }
+
+  /**
+   * Returns a connection manager whose connections are logged once
+   * {@link #start} has been called.
+   */
+  public static ThreadSafeClientConnManager newConnectionManager(HttpParams params,
+      SchemeRegistry schemeRegistry) {
+    return new ThreadSafeClientConnManager(params, schemeRegistry) {
+      @Override
+      protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+        return new DefaultClientConnectionOperator(registry) {
+          @Override
+          public OperatedClientConnection createConnection() {
+            WireLog log = instance;
+            return (log != null) ? log.new LoggedConnection() : new DefaultClientConnection();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns a wire for one direction of a new connection, for a transport
+   * that makes its own connections (see --transport) to log through, or null
+   * if {@link #start} hasn't been called.
+   *
+   * @param sent Whether this is the direction requests go out on.
+   */
+  public static Wire newWire(boolean sent) {
+    WireLog log = instance;
+    if (log == null) {
+      return null;
+    }
+    return log.new Tap(log.connectionCount.incrementAndGet(), sent ? '>' : '<');
+  }
+
+  /**
+   * Waits for what's queued to be written: for a little while when only
+   * displaying, or for all of it when capturing.
+   */
+  public static void flush() {
+    WireLog log = instance;
+    if (log == null) {
+      return;
+    }
+
+    long deadline = System.currentTimeMillis() + 2000;
+    synchronized (log.queue) {
+      while ((!log.queue.isEmpty() || log.queuedBytes.get() > 0)
+          && (log.capture != null || System.currentTimeMillis() < deadline)) {
+        try {
+          log.queue.wait(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private enum Kind {
+    LINE,
+    BODY,
+    /** Body bytes past here weren't copied, just counted. */
+    TRUNCATED,
+  }
+
+  private static class Record {
+    final long millis = System.currentTimeMillis();
+    final int connection;
+    final char direction;
+    final Kind kind;
+    final byte[] bytes;
+
+    Record(int connection, char direction, Kind kind, byte[] bytes) {
+      this.connection = connection;
+      this.direction = direction;
+      this.kind = kind;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Hands a record to the writer. If the writer's too far behind, waits for
+   * it when capturing, and otherwise drops the record. Called on the
+   * transfer's thread, so does as little as it can.
+   */
+  private void enqueue(Record record) {
+    long size = record.bytes.length;
+    if (capture != null) {
+      try {
+        captureRoom.acquire(permits(record));
+        queuedBytes.addAndGet(size);
+        queue.put(record);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        droppedRecords.incrementAndGet();
+      }
+      return;
+    }
+
+    if (queuedBytes.addAndGet(size) > QUEUE_BYTES) {
+      queuedBytes.addAndGet(-size);
+      droppedRecords.incrementAndGet();
+      return;
+    }
+    if (!queue.offer(record)) {
+      queuedBytes.addAndGet(-size);
+      droppedRecords.incrementAndGet();
+    }
+  }
+
+  /**
+   * How much of {@link #captureRoom} a record takes. One bigger than the
+   * whole queue takes all of it, rather than waiting forever.
+   */
+  private static int permits(Record record) {
+    return (int) Math.min(record.bytes.length, QUEUE_BYTES);
+  }
+
+  /**
+   * A connection whose buffers copy what passes through them to the log.
+   */
+  private class LoggedConnection extends DefaultClientConnection {
+    private final int id = connectionCount.incrementAndGet();
+
+    @Override
+    protected SessionInputBuffer createSessionInputBuffer(Socket socket, int bufferSize,
+        HttpParams params) throws IOException {
+      return new LoggingSessionInputBuffer(
+          super.createSessionInputBuffer(socket, bufferSize, params), new Tap(id, '<'));
+    }
+
+    @Override
+    protected SessionOutputBuffer createSessionOutputBuffer(Socket socket, int bufferSize,
+        HttpParams params) throws IOException {
+      return new LoggingSessionOutputBuffer(
+          super.createSessionOutputBuffer(socket, bufferSize, params), new Tap(id, '>'));
+    }
+  }
+
+  /**
+   * One direction of a connection. HttpClient reads and writes header lines
+   * (and chunk sizes) a line at a time and bodies as bytes, so the two come
+   * to us separately.
+   */
+  private class Tap extends Wire {
+    private final int connection;
+    private final char direction;
+
+    /** Body bytes since the last message started. */
+    private long bodyBytes;
+
+    public Tap(int connection, char direction) {
+      super(LogFactory.getLog(WireLog.class));
+      this.connection = connection;
+      this.direction = direction;
+    }
+
+    @Override
+    public boolean enabled() {
+      return true;
+    }
+
+    private void line(String s) throws IOException {
+      if (s.endsWith(EOL)) {
+        s = s.substring(0, s.length() - EOL.length());
+      }
+      if (s.length() > 0 && !isHex(s)) {
+        // A new message, rather than the blank line ending the headers or a
+        // chunk size in the middle of a body.
+        bodyBytes = 0;
+      }
+      enqueue(new Record(connection, direction, Kind.LINE, s.getBytes("ISO-8859-1")));
+    }
+
+    private void body(byte[] b, int off, int len) {
+      if (len <= 0) {
+        return;
+      }
+
+      // Without a capture, there's no need to copy more than we'll show.
+      long shown = bodyBytes;
+      bodyBytes += len;
+      if (capture == null) {
+        if (shown >= bodyLimit) {
+          return;
+        }
+        if (shown + len > bodyLimit) {
+          len = (int) (bodyLimit - shown);
+          copy(b, off, len);
+          enqueue(new Record(connection, direction, Kind.TRUNCATED, new byte[0]));
+          return;
+        }
+      }
+      copy(b, off, len);
+    }
+
+    private void copy(byte[] b, int off, int len) {
+      byte[] copy = new byte[len];
+      System.arraycopy(b, off, copy, 0, len);
+      enqueue(new Record(connection, direction, Kind.BODY, copy));
+    }
+
+    @Override
+    public void input(String s) throws IOException {
+      line(s);
+    }
+
+    @Override
+    public void output(String s) throws IOException {
+      line(s);
+    }
+
+    @Override
+    public void input(byte[] b, int off, int len) {
+      body(b, off, len);
+    }
+
+    @Override
+    public void output(byte[] b, int off, int len) {
+      body(b, off, len);
+    }
+
+    @Override
+    public void input(byte[] b) {
+      body(b, 0, b.length);
+    }
+
+    @Override
+    public void output(byte[] b) {
+      body(b, 0, b.length);
+    }
+
+    @Override
+    public void input(int b) {
+      body(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void output(int b) {
+      body(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void input(InputStream in) throws IOException {
+      copyStream(in);
+    }
+
+    @Override
+    public void output(InputStream in) throws IOException {
+      copyStream(in);
+    }
+
+    private void copyStream(InputStream in) throws IOException {
+      byte[] buf = new byte[4096];
+      int count;
+      while ((count = in.read(buf)) > -1) {
+        body(buf, 0, count);
+      }
+    }
+  }
+
+  private static boolean isHex(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (Character.digit(s.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drains the queue to the display and capture file.
+   */
+  private class Writer implements Runnable {
+    /** Body bytes shown so far, keyed by connection and direction. */
+    private final Map<String, long[]> shown = new HashMap<String, long[]>();
+    private final byte[] lineSeparator = System.getProperty("line.separator").getBytes();
+
+    public void run() {
+      while (true) {
+        Record record;
+        try {
+          record = queue.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        try {
+          long dropped = droppedRecords.getAndSet(0);
+          if (dropped > 0) {
+            writeDropped(dropped);
+          }
+
+          if (record != null) {
+            queuedBytes.addAndGet(-record.bytes.length);
+            if (capture != null) {
+              captureRoom.release(permits(record));
+            }
+            if (capture != null && record.kind != Kind.TRUNCATED) {
+              writeCapture(record);
+            }
+            if (display != null) {
+              writeDisplay(record);
+            }
+          }
+
+          if (queue.isEmpty()) {
+            if (capture != null) {
+              capture.flush();
+            }
+            if (display != null) {
+              display.flush();
+            }
+            synchronized (queue) {
+              queue.notifyAll();
+            }
+          }
+        } catch (IOException e) {
+          // Nowhere left to complain to; keep draining so the queue doesn't
+          // fill up.
+        }
+      }
+    }
+
+    private void writeCapture(Record record) throws IOException {
+      byte[] bytes = record.bytes;
+      int length = bytes.length + ((record.kind == Kind.LINE) ? CRLF.length : 0);
+      capture.write((record.millis + " " + record.connection + " " + record.direction + " "
+          + length + "\n").getBytes("US-ASCII"));
+      capture.write(bytes);
+      if (record.kind == Kind.LINE) {
+        capture.write(CRLF);
+      }
+      capture.write('\n');
+    }
+
+    private void writeDropped(long dropped) throws IOException {
+      String message = "* wire log fell behind; dropped " + dropped + " records";
+      if (display != null) {
+        display.write(message.getBytes("US-ASCII"));
+        display.write(lineSeparator);
+      }
+      if (capture != null) {
+        capture.write(("# " + message + "\n").getBytes("US-ASCII"));
+      }
+    }
+
+    private void writeDisplay(Record record) throws IOException {
+      long[] count = shown.get(record.connection + "" + record.direction);
+      if (count == null) {
+        count = new long[1];
+        shown.put(record.connection + "" + record.direction, count);
+      }
+
+      switch (record.kind) {
+      case LINE:
+        String line = new String(record.bytes, "ISO-8859-1");
+        if (line.length() == 0 || isHex(line)) {
+          return;
+        }
+        count[0] = 0;
+        writeLine(record.direction, record.bytes, 0, record.bytes.length);
+        break;
+
+      case TRUNCATED:
+        if (count[0] >= 0) {
+          writeNote(record.direction, "[body cut off after " + bodyLimit + " bytes]");
+          count[0] = -1;
+        }
+        break;
+
+      case BODY:
+        writeBody(record, count);
+        break;
+      }
+    }
+
+    /**
+     * Shows text bodies a line at a time, up to the limit, and binary ones
+     * as a little hex.
+     */
+    private void writeBody(Record record, long[] count) throws IOException {
+      if (count[0] < 0) {
+        return;
+      }
+
+      byte[] bytes = record.bytes;
+      if (isBinary(bytes)) {
+        StringBuilder hex = new StringBuilder("[binary body] ");
+        for (int i = 0; i < Math.min(bytes.length, HEX_BYTES); i++) {
+          hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+          hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+          hex.append(' ');
+        }
+        hex.append("...");
+        writeNote(record.direction, hex.toString());
+        count[0] = -1;
+        return;
+      }
+
+      int length = (int) Math.min(bytes.length, bodyLimit - count[0]);
+      int start = 0;
+      for (int i = 0; i < length; i++) {
+        if (bytes[i] == '\n') {
+          int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+          writeLine(record.direction, bytes, start, end - start);
+          start = i + 1;
+        }
+      }
+      if (start < length) {
+        writeLine(record.direction, bytes, start, length - start);
+      }
+
+      count[0] += bytes.length;
+      if (count[0] >= bodyLimit) {
+        writeNote(record.direction, "[body cut off after " + bodyLimit + " bytes]");
+        count[0] = -1;
+      }
+    }
+
+    private void writeLine(char direction, byte[] bytes, int off, int len) throws IOException {
+      display.write(direction);
+      display.write(' ');
+      display.write(bytes, off, len);
+      display.write(lineSeparator);
+    }
+
+    private void writeNote(char direction, String note) throws IOException {
+      byte[] bytes = note.getBytes("US-ASCII");
+      writeLine(direction, bytes, 0, bytes.length);
+    }
+  }
+
+  private static boolean isBinary(byte[] bytes) {
+    for (byte b : bytes) {
+      if (((b & 0xff) < 0x20 && b != '\n' && b != '\r' && b != '\t') || b == 0x7f) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
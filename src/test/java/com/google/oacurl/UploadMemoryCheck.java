@@ -0,0 +1,150 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+/**
+ * Checks that a "-f" upload streams from the file rather than holding it in
+ * memory, and is sent with a Content-Length.
+ * <p>
+ * Makes a sparse file of several GB, so it takes no disk space, and PUTs it
+ * with Fetch in a JVM with a small heap to a local server that counts the
+ * bytes and throws them away. Fails if Fetch fails (e.g. runs out of memory),
+ * or if the server didn't get every byte under a matching Content-Length.
+ * <p>
+ * Run with "[size in MB] [heap in MB]" (default "3072 16"). Exits with 1 if
+ * it finds a problem. See src/test/README.
+ */
+public class UploadMemoryCheck {
+  private static volatile String contentLength;
+  private static volatile String transferEncoding;
+  private static volatile long received = -1;
+
+  public static void main(String[] args) throws Exception {
+    long sizeMb = (args.length > 0) ? Long.parseLong(args[0]) : 3072;
+    int heapMb = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+    long size = sizeMb * 1024 * 1024;
+
+    File upload = File.createTempFile("oacurl-upload", ".bin");
+    upload.deleteOnExit();
+    RandomAccessFile file = new RandomAccessFile(upload, "rw");
+    try {
+      file.setLength(size);
+    } finally {
+      file.close();
+    }
+
+    // Signing happens locally, so any V1 token will do for the sink.
+    File login = File.createTempFile("oacurl-upload", ".properties");
+    login.deleteOnExit();
+    Properties properties = new Properties();
+    properties.setProperty("oauthVersion", "V1");
+    properties.setProperty("accessToken", "token");
+    properties.setProperty("accessTokenSecret", "secret");
+    FileOutputStream out = new FileOutputStream(login);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+
+    Server server = new Server(0);
+    server.addHandler(new SinkHandler());
+    server.start();
+
+    int exitCode;
+    long startNanos = System.nanoTime();
+    try {
+      String url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/upload";
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+          + "java";
+      ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heapMb + "m",
+          "-cp", System.getProperty("java.class.path"), Fetch.class.getName(),
+          "--access-file", login.getPath(), "-X", "PUT", "-f", upload.getPath(), url);
+      builder.redirectErrorStream(true);
+      Process process = builder.start();
+      process.getOutputStream().close();
+      exitCode = copyOutput(process);
+    } finally {
+      server.stop();
+    }
+
+    System.out.println("Fetch -Xmx" + heapMb + "m exited with " + exitCode + "; server got "
+        + received + " of " + size + " bytes, Content-Length " + contentLength
+        + ", Transfer-Encoding " + transferEncoding + ", in "
+        + (System.nanoTime() - startNanos) / 1000000 + " ms");
+
+    boolean failed = exitCode != 0 || received != size
+        || !Long.toString(size).equals(contentLength);
+    System.out.println(failed ? "FAIL" : "OK");
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static int copyOutput(Process process) throws IOException, InterruptedException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        System.out.println(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return process.waitFor();
+  }
+
+  /**
+   * Reads and discards the request body, noting how it was sent.
+   */
+  private static class SinkHandler extends AbstractHandler {
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch)
+        throws IOException, ServletException {
+      contentLength = request.getHeader("Content-Length");
+      transferEncoding = request.getHeader("Transfer-Encoding");
+
+      byte[] buf = new byte[64 * 1024];
+      long count = 0;
+      InputStream in = request.getInputStream();
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        count += read;
+      }
+      received = count;
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("text/plain");
+      response.getWriter().println("Received " + count + " bytes");
+      response.flushBuffer();
+      ((Request) request).setHandled(true);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link V1MessageSigner} signs exactly as the OAuth library
+ * does: each message is signed by it, then the library signs the same
+ * parameters (timestamp and nonce included) and the signatures must match.
+ */
+public class V1MessageSignerTest {
+  /** Everything RFC 3986 reserves, plus a few that are commonly mishandled. */
+  private static final String RESERVED = ":/?#[]@!$&'()*+,;= %~-._\"<>\\^`{|}";
+
+  @Test
+  public void plainRequest() throws Exception {
+    assertSameSignature("GET", "http://example.com/feeds", parameters());
+  }
+
+  @Test
+  public void reservedCharacters() throws Exception {
+    assertSameSignature("POST", "http://example.com/a%20path/x",
+        parameters(RESERVED, RESERVED, "q", "a+b c", "*", "'()!"));
+  }
+
+  @Test
+  public void nonAscii() throws Exception {
+    assertSameSignature("GET", "http://example.com/",
+        parameters("name", "J\u00FCrgen \u65E5\u672C", "emoji", "\uD83D\uDE00"));
+  }
+
+  @Test
+  public void repeatedKeys() throws Exception {
+    assertSameSignature("GET", "http://example.com/",
+        parameters("a", "2", "a", "1", "a", "10", "b", "x", "a", ""));
+  }
+
+  @Test
+  public void emptyValues() throws Exception {
+    assertSameSignature("POST", "http://example.com/",
+        parameters("empty", "", "", "noname", "z", ""));
+  }
+
+  @Test
+  public void queryStringInUrl() throws Exception {
+    assertSameSignature("GET", "http://example.com/q?x=%2Fa%2Bb&y=&x=1&plus=a+b",
+        parameters("x", "0"));
+  }
+
+  @Test
+  public void urlNormalization() throws Exception {
+    assertSameSignature("get", "HTTP://Example.COM:80", parameters());
+    assertSameSignature("GET", "https://example.com:443/p", parameters());
+    assertSameSignature("GET", "http://example.com:8080/p", parameters());
+  }
+
+  @Test
+  public void secretsWithReservedCharacters() throws Exception {
+    OAuthAccessor accessor = newAccessor("key&=", "con sumer&secret", "tok%en", "token&secret");
+    assertSameSignature(accessor, "GET", "http://example.com/", parameters("a", "b"));
+  }
+
+  @Test
+  public void noAccessToken() throws Exception {
+    OAuthAccessor accessor = newAccessor("key", "secret", null, null);
+    assertSameSignature(accessor, "GET", "http://example.com/", parameters("a", "b"));
+  }
+
+  @Test
+  public void leavesOtherSignatureMethodsToTheLibrary() throws Exception {
+    OAuthAccessor accessor = newAccessor("key", "secret", "token", "tokenSecret");
+    accessor.consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.RSA_SHA1);
+    OAuthMessage message = new OAuthMessage("GET", "http://example.com/", parameters());
+    assertFalse(V1MessageSigner.sign(accessor, message));
+    assertEquals(0, message.getParameters().size());
+  }
+
+  @Test
+  public void percentEncodeMatchesLibrary() {
+    String[] samples = { "", RESERVED, "abcXYZ019", "\u00E9\u00DF", "\uD83D\uDE00x", "a\u0000b" };
+    for (String sample : samples) {
+      StringBuilder out = new StringBuilder();
+      V1MessageSigner.percentEncode(sample, out);
+      assertEquals(OAuth.percentEncode(sample), out.toString());
+    }
+  }
+
+  private static void assertSameSignature(String method, String url,
+      List<OAuth.Parameter> parameters) throws Exception {
+    assertSameSignature(newAccessor("consumerKey", "consumerSecret", "accessToken",
+        "tokenSecret"), method, url, parameters);
+  }
+
+  private static void assertSameSignature(OAuthAccessor accessor, String method, String url,
+      List<OAuth.Parameter> parameters) throws Exception {
+    OAuthMessage ours = new OAuthMessage(method, url, parameters);
+    assertTrue(V1MessageSigner.sign(accessor, ours));
+
+    List<OAuth.Parameter> signed = new ArrayList<OAuth.Parameter>();
+    String signature = null;
+    for (Map.Entry<String, String> parameter : ours.getParameters()) {
+      if (OAuth.OAUTH_SIGNATURE.equals(parameter.getKey())) {
+        signature = parameter.getValue();
+      } else {
+        signed.add(new OAuth.Parameter(parameter.getKey(), parameter.getValue()));
+      }
+    }
+
+    OAuthMessage library = new OAuthMessage(method, url, signed);
+    library.sign(accessor);
+    assertEquals(library.getParameter(OAuth.OAUTH_SIGNATURE), signature);
+  }
+
+  private static OAuthAccessor newAccessor(String consumerKey, String consumerSecret,
+      String accessToken, String tokenSecret) {
+    OAuthAccessor accessor = new OAuthAccessor(
+        new OAuthConsumer(null, consumerKey, consumerSecret, null));
+    accessor.accessToken = accessToken;
+    accessor.tokenSecret = tokenSecret;
+    return accessor;
+  }
+
+  private static List<OAuth.Parameter> parameters(String... namesAndValues) {
+    List<OAuth.Parameter> parameters = new ArrayList<OAuth.Parameter>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      parameters.add(new OAuth.Parameter(namesAndValues[i], namesAndValues[i + 1]));
+    }
+    return parameters;
+  }
+}
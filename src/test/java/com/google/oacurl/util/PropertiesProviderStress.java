@@ -0,0 +1,180 @@
+// Copyright 2010 Google, Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.oacurl.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks that {@link PropertiesProvider} is safe to share between processes.
+ * <p>
+ * Writer processes each do a number of locked read-increment-write cycles
+ * on one file while reader processes read it as fast as they can, both
+ * through the provider and straight off the disk. Every write changes
+ * "count" and "check" together and pads the file out to several disk
+ * blocks, so a reader that sees them differ, or the padding cut short, has
+ * seen part of a file. At the end, "count" must be exactly the number of
+ * increments, or a writer lost another's change.
+ * <p>
+ * Run with "[writers] [updates] [readers] [reads]" (default "6 200 2
+ * 40000"). Exits with 1 if it finds a problem. See src/test/README.
+ */
+public class PropertiesProviderStress {
+  private static final String PAD = makePad(16 * 1024);
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("write")) {
+      write(args[1], Integer.parseInt(args[2]));
+      return;
+    } else if (args.length > 0 && args[0].equals("read")) {
+      read(args[1], Integer.parseInt(args[2]));
+      return;
+    }
+
+    int writers = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+    int updates = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+    int readers = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+    int reads = (args.length > 3) ? Integer.parseInt(args[3]) : 40000;
+
+    File file = File.createTempFile("oacurl-stress", ".properties");
+    file.deleteOnExit();
+    new File(file.getPath() + ".lock").deleteOnExit();
+
+    Properties initial = new Properties();
+    initial.setProperty("count", "0");
+    initial.setProperty("check", "0");
+    initial.setProperty("pad", PAD);
+    new PropertiesProvider(file.getPath()).overwrite(initial);
+
+    List<Process> processes = new ArrayList<Process>();
+    for (int i = 0; i < writers; i++) {
+      processes.add(startChild("write", file, updates));
+    }
+    for (int i = 0; i < readers; i++) {
+      processes.add(startChild("read", file, reads));
+    }
+
+    boolean failed = false;
+    for (Process process : processes) {
+      failed |= waitFor(process) != 0;
+    }
+
+    Properties result = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      result.load(in);
+    } finally {
+      in.close();
+    }
+
+    int expected = writers * updates;
+    int count = Integer.parseInt(result.getProperty("count"));
+    System.out.println(writers + " writers did " + updates + " updates each, "
+        + readers + " readers did " + reads + " reads each; final count " + count
+        + " of " + expected);
+
+    if (count != expected) {
+      System.out.println("FAIL: lost " + (expected - count) + " updates");
+      failed = true;
+    }
+
+    System.out.println(failed ? "FAIL" : "OK");
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static void write(String fileName, int updates) throws IOException {
+    PropertiesProvider provider = new PropertiesProvider(fileName);
+    for (int i = 0; i < updates; i++) {
+      provider.update(new PropertiesProvider.Update() {
+        public void apply(Properties properties) {
+          String next = Integer.toString(Integer.parseInt(properties.getProperty("count")) + 1);
+          properties.setProperty("count", next);
+          properties.setProperty("check", next);
+        }
+      });
+    }
+  }
+
+  private static void read(String fileName, int reads) throws IOException {
+    File file = new File(fileName);
+    for (int i = 0; i < reads; i++) {
+      Properties properties;
+      if (i % 2 == 0) {
+        properties = new PropertiesProvider(fileName).get();
+      } else {
+        // Straight off the disk, in case the provider's cache hides a torn file.
+        properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+      }
+
+      String count = properties.getProperty("count");
+      if (count == null || !count.equals(properties.getProperty("check"))
+          || !PAD.equals(properties.getProperty("pad"))) {
+        System.out.println("FAIL: torn read on read " + i + ": count=" + count
+            + ", check=" + properties.getProperty("check"));
+        System.exit(1);
+      }
+    }
+  }
+
+  private static Process startChild(String mode, File file, int times) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    ProcessBuilder builder = new ProcessBuilder(java,
+        "-cp", System.getProperty("java.class.path"),
+        PropertiesProviderStress.class.getName(), mode, file.getPath(), Integer.toString(times));
+    builder.redirectErrorStream(true);
+    return builder.start();
+  }
+
+  /**
+   * Copies the child's output to ours and waits for it to finish.
+   *
+   * @return Its exit code.
+   */
+  private static int waitFor(Process process) throws IOException, InterruptedException {
+    process.getOutputStream().close();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        System.out.println(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return process.waitFor();
+  }
+
+  private static String makePad(int length) {
+    StringBuilder pad = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      pad.append((char) ('a' + i % 26));
+    }
+    return pad.toString();
+  }
+}